@@ -16,7 +16,7 @@ public class AvoidObjects implements Observer {
 	/** */
 	public AvoidObjects(Application a){
 		Util.log("..starting up", this);
-		state.addObserver(this);
+		state.addObserver(this, State.values.centerpoint);
 		app = a;
 	}
 	
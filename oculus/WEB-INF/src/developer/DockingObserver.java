@@ -17,7 +17,7 @@ public class DockingObserver implements Observer {
 	/** register for state changes */
 	public DockingObserver(Application a) {
 		app = a;
-		state.addObserver(this);
+		state.addObserver(this, State.DOCK);
 	}
 
 	@Override
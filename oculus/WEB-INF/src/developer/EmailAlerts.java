@@ -28,7 +28,7 @@ public class EmailAlerts implements Observer {
 			// not disabled
 			if( ! settings.readSetting(ManualSettings.email_smtp_server).equals(Settings.DISABLED)){
 		
-				state.addObserver(this);
+				state.addObserver(this, State.values.batterylife);
 				oculus.Util.debug("starting email alerts for battery life", this);
 				
 			}
@@ -13,6 +13,7 @@ import oculus.Util;
 
 import java.io.IOException;
 import java.nio.ShortBuffer;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.Vector;
 
@@ -23,6 +24,11 @@ public class MotionTracker implements IObserver<ErrorStateEventArgs>, Observer {
 	protected static final int MAX_SIZE = 5;
 	protected static final long START_UP_DELAY = 5000;
 	protected static final long POLL_DELAY = 300;
+	protected static final int NATIVE_FPS = 30;
+	protected static final int MIN_POLL_DELAY = 1000 / NATIVE_FPS;
+	
+	/** depth values are 16 bit, mm */
+	private static final int DEPTH_RANGE = 1 << 16;
 
 	//private static final Integer TOO_CLOSE = 400;
 	private static final Integer THRESHOLD = 5;
@@ -39,6 +45,11 @@ public class MotionTracker implements IObserver<ErrorStateEventArgs>, Observer {
 	private DepthMetaData depthMD;
 	private int xRes = 0;
 	private int yRes = 0;
+	
+	// reused every frame
+	private short[] frame = null; // latest depth frame, row major
+	private int[] counts = new int[DEPTH_RANGE];
+	private byte[] shade = new byte[DEPTH_RANGE]; // depth to grey, from the histogram
 
 	private int pollDelay = 300;
 	
@@ -85,6 +96,7 @@ public class MotionTracker implements IObserver<ErrorStateEventArgs>, Observer {
 		depth.getMetaData(depthMD);
 		xRes = depthMD.getXRes();
 		yRes = depthMD.getYRes();
+		frame = new short[xRes * yRes];
 		Util.debug("depth cam start up, xRes: " + xRes + " yRes: " + yRes, this);
 		start();
 	}
@@ -106,7 +118,7 @@ public class MotionTracker implements IObserver<ErrorStateEventArgs>, Observer {
 
 	/** */
 	public void setPollDelay(int delay) {
-		if (delay > 100)//// TODO: SET MIN? ...  POLL_DELAY)
+		if (delay >= MIN_POLL_DELAY)
 			pollDelay = delay;
 	}
 
@@ -118,7 +130,7 @@ public class MotionTracker implements IObserver<ErrorStateEventArgs>, Observer {
 			return;
 		}
 
-		state.addObserver(this);
+		state.addObserver(this, State.values.centerpoint);
 		running = true;
 		new Thread(new Runnable() {
 
@@ -133,8 +145,6 @@ public class MotionTracker implements IObserver<ErrorStateEventArgs>, Observer {
 				while (running) {
 
 					Util.delay(pollDelay);
-
-					updateCenter();
 					
 					// if(i++ % 5 == 0) save("test.png");
 					
@@ -154,71 +164,74 @@ public class MotionTracker implements IObserver<ErrorStateEventArgs>, Observer {
 					
 				//	if( close.z > 400 ) save("_test.png");
 
-					// push out oldest record
-					if (frames.size() == frames.capacity()) frames.removeElementAt(0);
+					// push out oldest record, reusing its bytes
+					byte[] imgbytes = null;
+					if (frames.size() == frames.capacity()) imgbytes = frames.remove(0);
 					if (meta.size() == meta.capacity()) meta.removeElementAt(0);
 
 					// get new frame
-					frames.add(getDepth());
+					frames.add(getDepth(imgbytes));
 					meta.add(System.currentTimeMillis());
+					
+					updateCenter();
 
 				}
 			}
 		}).start();
 	}
 
-	/** send current center point to state. (distance in mm) */
-	private void updateCenter() {
-		int center = depthMD.getData().readPixel(xRes / 2, yRes / 2);
+	/** send latest frame's center point to state. (distance in mm) */
+	private synchronized void updateCenter() {
+		int center = frame[(yRes / 2) * xRes + xRes / 2] & 0xffff;
 		if (center != state.getInteger(State.values.centerpoint))
 			state.set(State.values.centerpoint, center);
 	}
 
-	/** */
-	private float[] calcHist() {
+	/** copy the sensor's current depth map into frame, one bulk read */
+	private synchronized short[] readFrame() {
+		depth.getMetaData(depthMD);
+		ShortBuffer data = depthMD.getData().createShortBuffer();
+		data.rewind();
+		data.get(frame, 0, Math.min(frame.length, data.remaining()));
+		return frame;
+	}
 
-		float histogram[] = new float[xRes * yRes];
-		for (int i = 0; i < histogram.length; ++i) histogram[i] = 0;
-		ShortBuffer depth = depthMD.getData().createShortBuffer();
-		depth.rewind();
+	/** fill shade from the cumulative histogram of frame, nearer is brighter, 0 (no reading) black */
+	private void calcHist() {
 
+		Arrays.fill(counts, 0);
 		int points = 0;
-		while (depth.remaining() > 0) {
-			short depthVal = depth.get();
+		for (int i = 0; i < frame.length; i++) {
+			int depthVal = frame[i] & 0xffff;
 			if (depthVal != 0) {
-				histogram[depthVal]++;
+				counts[depthVal]++;
 				points++;
 			}
 		}
 
-		for (int i = 1; i < histogram.length; i++)
-			histogram[i] += histogram[i - 1];
-
-		if (points > 0) {
-			for (int i = 1; i < histogram.length; i++) {
-				histogram[i] = (int) (256 * (1.0f - (histogram[i] / (float) points)));
-			}
+		shade[0] = 0;
+		int sum = 0;
+		for (int i = 1; i < DEPTH_RANGE; i++) {
+			sum += counts[i];
+			shade[i] = points > 0 ? (byte) (int) (256 * (1.0f - ((float) sum / (float) points))) : 0;
 		}
-
-		return histogram;
 	}
 
-	/** */
-	private byte[] getDepth() {
+	/** 
+	 * wait for the next depth frame and shade it 
+	 * 
+	 * @param imgbytes to reuse, or null
+	 */
+	private synchronized byte[] getDepth(byte[] imgbytes) {
 
-		byte[] imgbytes = new byte[xRes * yRes];
+		if (imgbytes == null || imgbytes.length != xRes * yRes) imgbytes = new byte[xRes * yRes];
 		try {
 
 			context.waitAnyUpdateAll();
-			float[] histogram = calcHist();
-			ShortBuffer depth = depthMD.getData().createShortBuffer();
-			depth.rewind();
-
-			while (depth.remaining() > 0) {
-				int pos = depth.position();
-				short pixel = depth.get();
-				imgbytes[pos] = (byte) histogram[pixel];
-			}
+			readFrame();
+			calcHist();
+			for (int i = 0; i < frame.length; i++) imgbytes[i] = shade[frame[i] & 0xffff];
+			
 		} catch (GeneralException e) {
 			Util.log("updateDepth(): " + e.getLocalizedMessage(), this);
 		}
@@ -226,7 +239,6 @@ public class MotionTracker implements IObserver<ErrorStateEventArgs>, Observer {
 		return imgbytes;
 	}
 
-	
 	/**
 	 * used to test, send images via servlett
 	 * 
@@ -275,7 +287,7 @@ public class MotionTracker implements IObserver<ErrorStateEventArgs>, Observer {
 	  
 		  BufferedImage bimg = new BufferedImage((Integer) xRes, yRes,
 		  BufferedImage.TYPE_BYTE_GRAY); DataBufferByte dataBuffer = new
-		  DataBufferByte(getDepth(), xRes*yRes); Raster raster =
+		  DataBufferByte(getDepth(null), xRes*yRes); Raster raster =
 		  Raster.createPackedRaster(dataBuffer, xRes, yRes, 8, null);
 		  bimg.setData(raster);
 		  
@@ -301,9 +313,13 @@ public class MotionTracker implements IObserver<ErrorStateEventArgs>, Observer {
 		// long start = System.currentTimeMillis();
 
 		int frame[][] = new int[xRes][yRes];
-		for (int x = 0; x < xRes; x++) {
+		synchronized (this) {
+			short[] depth = readFrame();
 			for (int y = 0; y < yRes; y++) {
-				frame[x][y] = depthMD.getData().readPixel(x, y);
+				int row = y * xRes;
+				for (int x = 0; x < xRes; x++) {
+					frame[x][y] = depth[row + x] & 0xffff;
+				}
 			}
 		}
 
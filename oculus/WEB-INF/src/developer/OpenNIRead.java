@@ -3,6 +3,8 @@ package developer;
 import oculus.Application;
 import oculus.Settings;
 
+import java.nio.ShortBuffer;
+
 import org.OpenNI.*;
 
 public class OpenNIRead implements IObserver<ErrorStateEventArgs>{
@@ -14,6 +16,8 @@ public class OpenNIRead implements IObserver<ErrorStateEventArgs>{
 	private boolean depthCamInit = false;
 	public  boolean depthCamGenerating = false;
 	private static Application app;
+	private short[] row = null; // reused by readHorizDepth
+	private int[] horiz = null;
 	
 	public OpenNIRead(Application a) {
 		app = a;
@@ -63,7 +67,17 @@ public class OpenNIRead implements IObserver<ErrorStateEventArgs>{
 		}
 	}
 	
-	public int[] readHorizDepth(int y) {
+	/** @return id of the newest depth frame, the one readHorizDepth would read now */
+	public int getFrameID() {
+		depth.getMetaData(depthMD);
+		return depthMD.getFrameID();
+	}
+	
+	/** 
+	 * @return depth in mm along row y, one bulk copy from the depth map rather than a read per pixel.
+	 * Reused, valid until the next call 
+	 */
+	public synchronized int[] readHorizDepth(int y) {
 		/*
 		try {
 			context.waitAnyUpdateAll();
@@ -73,13 +87,16 @@ public class OpenNIRead implements IObserver<ErrorStateEventArgs>{
 		}
 		*/
 		depth.getMetaData(depthMD);
-		int[] result = new int[depthMD.getXRes()];
-		int p=0;
-		for (int x=0; x < depthMD.getXRes(); x++) {
-			result[p]= depthMD.getData().readPixel(x, y); // depthMD.getYRes() / 2);
-			p++;
+		int xres = depthMD.getXRes();
+		if (row == null || row.length != xres) {
+			row = new short[xres];
+			horiz = new int[xres];
 		}
-		return result;
+		ShortBuffer data = depthMD.getData().createShortBuffer();
+		data.position(y*xres);
+		data.get(row);
+		for (int x=0; x < xres; x++) { horiz[x] = row[x] & 0xffff; }
+		return horiz;
 	}
 
 //	public static void main(String[] args) // shows ctr pixel value, sample
@@ -0,0 +1,92 @@
+package developer.image;
+
+import java.util.Arrays;
+
+/**
+ * Separable box blur on 8-bit greyscale planes.
+ *
+ * A running sum slides along each row and then down each column, so the cost per pixel
+ * is the same for any radius. Near the frame edges the window is clipped and averaged over the
+ * pixels actually inside it (no black border the way ConvolveOp's zero fill leaves).
+ * The intermediate row pass and the output are kept and reused while the frame size holds.
+ */
+public class BoxBlur {
+
+	private int[] rows = new int[0]; // horizontal pass, unscaled sums
+	private int[] counts = new int[0]; // pixels under each row window
+	private int[] colsum = new int[0]; // vertical pass, one running sum per column
+	private int[] colcount = new int[0];
+	private byte[] out = new byte[0];
+
+	public BoxBlur() { }
+
+	/**
+	 * Blur src into the reused output buffer
+	 *
+	 * @param src w*h greyscale pixels (unsigned), not modified
+	 * @param radius window half-width, 1 gives the usual 3x3 smoothing
+	 * @return blurred pixels, valid until the next call, may be longer than w*h
+	 */
+	public byte[] blur(byte[] src, int w, int h, int radius) {
+		if (out.length < w*h) { out = new byte[w*h]; }
+		blur(src, out, w, h, radius);
+		return out;
+	}
+
+	/**
+	 * Blur src into dst, which may not be the same array
+	 *
+	 * @param radius window half-width, 0 copies
+	 */
+	public void blur(byte[] src, byte[] dst, int w, int h, int radius) {
+		if (radius <= 0) {
+			System.arraycopy(src, 0, dst, 0, w*h);
+			return;
+		}
+		if (rows.length < w*h) {
+			rows = new int[w*h];
+			counts = new int[w*h];
+		}
+
+		// horizontal: sum of the clipped window around each pixel, and how many pixels that was
+		for (int y=0; y<h; y++) {
+			int row = y*w;
+			int sum = 0;
+			int n = 0;
+			for (int x=0; x<radius && x<w; x++) { sum += src[row+x] & 0xff; n++; }
+			for (int x=0; x<w; x++) {
+				int in = x+radius;
+				int gone = x-radius-1;
+				if (in < w) { sum += src[row+in] & 0xff; n++; }
+				if (gone >= 0) { sum -= src[row+gone] & 0xff; n--; }
+				rows[row+x] = sum;
+				counts[row+x] = n;
+			}
+		}
+
+		// vertical: running column sums over the row sums, walked a row at a time, divide by the 2d window area
+		if (colsum.length < w) {
+			colsum = new int[w];
+			colcount = new int[w];
+		}
+		Arrays.fill(colsum, 0, w, 0);
+		Arrays.fill(colcount, 0, w, 0);
+		for (int y=0; y<radius && y<h; y++) { addRow(y*w, w, 1); }
+		for (int y=0; y<h; y++) {
+			if (y+radius < h) { addRow((y+radius)*w, w, 1); }
+			if (y-radius-1 >= 0) { addRow((y-radius-1)*w, w, -1); }
+			int row = y*w;
+			for (int x=0; x<w; x++) {
+				int n = colcount[x];
+				dst[row+x] = (byte) ((colsum[x] + n/2) / n);
+			}
+		}
+	}
+
+	private void addRow(int row, int w, int sign) {
+		for (int x=0; x<w; x++) {
+			colsum[x] += sign*rows[row+x];
+			colcount[x] += sign*counts[row+x];
+		}
+	}
+}
@@ -0,0 +1,308 @@
+package developer.image;
+
+/**
+ * Finds the offset between two block matrices (as ImageUtils.convertToMatrix makes them,
+ * indexed [x][y]), ie: where the reference scene has moved to in the current frame.
+ *
+ * The score of an offset is the mean absolute difference over the cells the two matrices
+ * share when overlaid, searched over +/- half the matrix each way (same as the original
+ * brute force findCenter). Three ways to get there:
+ *
+ * exhaustive: every offset, every cell, O(n^4), kept as the reference
+ * pyramid: halve both matrices until small, search the coarsest level fully, then refine
+ * 		the best few +/-1 cell at each finer level, so only a handful of offsets are scored at full size
+ * phase: phase correlation, the FFT cross-power spectrum peaks at the shift, then a +/-1 cell
+ * 		refine by score. Best for big matrices (fine matrixres, 640x480)
+ *
+ * Buffers are kept between calls while matrix sizes hold. Not thread safe, one per caller.
+ */
+public class ImageRegistration {
+
+	public enum Mode { exhaustive, pyramid, phase };
+
+	public Mode mode = Mode.pyramid;
+
+	/** stop halving when either side of the matrix would drop below this */
+	public static final int PYRAMID_MIN = 8;
+
+	/** offsets carried from each pyramid level down to the next */
+	public static final int BEAM = 8;
+
+	private double score; // of the last result
+
+	// phase correlation working buffers, padded power of 2 sizes
+	private int fw;
+	private int fh;
+	private double[] re1;
+	private double[] im1;
+	private double[] re2;
+	private double[] im2;
+	private double[] colre;
+	private double[] colim;
+
+	public ImageRegistration() { }
+
+	public ImageRegistration(Mode mode) { this.mode = mode; }
+
+	/** @return mean absolute difference of the last registered offset, lower is a better match */
+	public double getScore() { return score; }
+
+	/**
+	 * @param matrix current frame
+	 * @param reference previously recorded frame, same dimensions
+	 * @return x,y in matrix cells, matrix[i+x][j+y] lines up with reference[i][j]
+	 */
+	public int[] register(int[][] matrix, int[][] reference) {
+		int w = matrix.length;
+		int h = matrix[0].length;
+		int[] best;
+		switch (mode) {
+		case exhaustive:
+			best = search(matrix, reference, -(w/2), w/2, -(h/2), h/2, w/2, h/2);
+			break;
+		case phase:
+			int[] peak = phaseCorrelate(matrix, reference);
+			best = search(matrix, reference, peak[0]-1, peak[0]+1, peak[1]-1, peak[1]+1, w/2, h/2);
+			break;
+		default:
+			best = pyramid(matrix, reference, w/2, h/2);
+		}
+		return best;
+	}
+
+	/** coarse to fine, limits are the full size search range */
+	private int[] pyramid(int[][] matrix, int[][] reference, int limitx, int limity) {
+		int[][] best = candidates(matrix, reference, limitx, limity);
+		score = score(matrix, reference, best[0][0], best[0][1]);
+		return best[0];
+	}
+
+	/**
+	 * @return the BEAM lowest scoring offsets at this level, best first. A single winner
+	 * at a coarse level can be fooled by repeating texture, so a few runners-up are refined too
+	 */
+	private int[][] candidates(int[][] matrix, int[][] reference, int limitx, int limity) {
+		int w = matrix.length;
+		int h = matrix[0].length;
+		int[][] best = new int[BEAM][];
+		double[] scores = new double[BEAM];
+		java.util.Arrays.fill(scores, Double.MAX_VALUE);
+		if (w/2 < PYRAMID_MIN || h/2 < PYRAMID_MIN) {
+			for (int x=-limitx; x<=limitx; x++) {
+				for (int y=-limity; y<=limity; y++) {
+					keep(best, scores, x, y, score(matrix, reference, x, y));
+				}
+			}
+			return best;
+		}
+		int[][] coarse = candidates(halve(matrix), halve(reference), limitx/2, limity/2);
+		for (int c=0; c<BEAM && coarse[c] != null; c++) {
+			for (int x=coarse[c][0]*2-1; x<=coarse[c][0]*2+1; x++) {
+				for (int y=coarse[c][1]*2-1; y<=coarse[c][1]*2+1; y++) {
+					if (Math.abs(x) > limitx || Math.abs(y) > limity) continue;
+					keep(best, scores, x, y, score(matrix, reference, x, y));
+				}
+			}
+		}
+		return best;
+	}
+
+	/** insert x,y into the sorted beam if it scores well enough and isn't already there */
+	private static void keep(int[][] best, double[] scores, int x, int y, double s) {
+		int n = best.length;
+		if (s >= scores[n-1]) return;
+		for (int i=0; i<n && best[i] != null; i++) {
+			if (best[i][0] == x && best[i][1] == y) return;
+		}
+		int i = n-1;
+		while (i > 0 && scores[i-1] > s) {
+			scores[i] = scores[i-1];
+			best[i] = best[i-1];
+			i--;
+		}
+		scores[i] = s;
+		best[i] = new int[]{x, y};
+	}
+
+	/** @return matrix at half resolution, each cell the average of 2x2, odd edge dropped */
+	private static int[][] halve(int[][] m) {
+		int w = m.length/2;
+		int h = m[0].length/2;
+		int[][] half = new int[w][h];
+		for (int x=0; x<w; x++) {
+			for (int y=0; y<h; y++) {
+				half[x][y] = (m[2*x][2*y] + m[2*x+1][2*y] + m[2*x][2*y+1] + m[2*x+1][2*y+1]) / 4;
+			}
+		}
+		return half;
+	}
+
+	/** score every offset in the box, clipped to +/- limit, keep the lowest */
+	private int[] search(int[][] matrix, int[][] reference, int x0, int x1, int y0, int y1, int limitx, int limity) {
+		x0 = Math.max(x0, -limitx);
+		x1 = Math.min(x1, limitx);
+		y0 = Math.max(y0, -limity);
+		y1 = Math.min(y1, limity);
+		int winningx = 0;
+		int winningy = 0;
+		double winningRatio = Double.MAX_VALUE;
+		for (int x=x0; x<=x1; x++) {
+			for (int y=y0; y<=y1; y++) {
+				double ratio = score(matrix, reference, x, y);
+				if (ratio < winningRatio) {
+					winningRatio = ratio;
+					winningx = x;
+					winningy = y;
+				}
+			}
+		}
+		score = winningRatio;
+		return new int[]{winningx, winningy};
+	}
+
+	/** @return mean absolute difference of the overlap at offset x,y */
+	private static double score(int[][] matrix, int[][] reference, int x, int y) {
+		int w = matrix.length;
+		int h = matrix[0].length;
+		int xs = Math.max(0, -x);
+		int xe = Math.min(w, w-x);
+		int ys = Math.max(0, -y);
+		int ye = Math.min(h, h-y);
+		if (xs >= xe || ys >= ye) return Double.MAX_VALUE;
+		long total = 0;
+		for (int xx=xs; xx<xe; xx++) {
+			int[] m = matrix[xx+x];
+			int[] r = reference[xx];
+			for (int yy=ys; yy<ye; yy++) {
+				total += Math.abs(m[yy+y] - r[yy]);
+			}
+		}
+		return (double) total / (double) ((xe-xs)*(ye-ys));
+	}
+
+	/**
+	 * Phase correlation, both matrices zero padded to twice their size so a shift of up to half
+	 * doesn't wrap onto another
+	 *
+	 * @return x,y of the correlation peak within +/- half the matrix
+	 */
+	private int[] phaseCorrelate(int[][] matrix, int[][] reference) {
+		int w = matrix.length;
+		int h = matrix[0].length;
+		allocate(pow2(2*w), pow2(2*h));
+		load(matrix, re1, im1, w, h);
+		load(reference, re2, im2, w, h);
+		fft2(re1, im1, false);
+		fft2(re2, im2, false);
+
+		// normalized cross-power spectrum, matrix times conjugate of reference
+		for (int i=0; i<fw*fh; i++) {
+			double re = re1[i]*re2[i] + im1[i]*im2[i];
+			double im = im1[i]*re2[i] - re1[i]*im2[i];
+			double mag = Math.sqrt(re*re + im*im);
+			if (mag < 1e-9) { re1[i] = 0; im1[i] = 0; }
+			else { re1[i] = re/mag; im1[i] = im/mag; }
+		}
+		fft2(re1, im1, true);
+
+		int bestx = 0;
+		int besty = 0;
+		double peak = -Double.MAX_VALUE;
+		for (int y=-(h/2); y<=h/2; y++) {
+			for (int x=-(w/2); x<=w/2; x++) {
+				double v = re1[((x+fw)%fw) + ((y+fh)%fh)*fw];
+				if (v > peak) {
+					peak = v;
+					bestx = x;
+					besty = y;
+				}
+			}
+		}
+		return new int[]{bestx, besty};
+	}
+
+	private void allocate(int w, int h) {
+		if (re1 != null && fw == w && fh == h) return;
+		fw = w;
+		fh = h;
+		re1 = new double[w*h];
+		im1 = new double[w*h];
+		re2 = new double[w*h];
+		im2 = new double[w*h];
+		colre = new double[h];
+		colim = new double[h];
+	}
+
+	private static int pow2(int n) {
+		int p = 1;
+		while (p < n) { p <<= 1; }
+		return p;
+	}
+
+	/** copy matrix into the top left of the padded plane, row stride fw */
+	private void load(int[][] m, double[] re, double[] im, int w, int h) {
+		java.util.Arrays.fill(re, 0);
+		java.util.Arrays.fill(im, 0);
+		for (int x=0; x<w; x++) {
+			for (int y=0; y<h; y++) {
+				re[x + y*fw] = m[x][y];
+			}
+		}
+	}
+
+	/** in place 2d fft, rows then columns */
+	private void fft2(double[] re, double[] im, boolean inverse) {
+		for (int y=0; y<fh; y++) {
+			fft(re, im, y*fw, fw, inverse);
+		}
+		for (int x=0; x<fw; x++) {
+			for (int y=0; y<fh; y++) {
+				colre[y] = re[x + y*fw];
+				colim[y] = im[x + y*fw];
+			}
+			fft(colre, colim, 0, fh, inverse);
+			for (int y=0; y<fh; y++) {
+				re[x + y*fw] = colre[y];
+				im[x + y*fw] = colim[y];
+			}
+		}
+	}
+
+	/** iterative radix 2 fft of n points starting at offset, unscaled both ways */
+	private static void fft(double[] re, double[] im, int offset, int n, boolean inverse) {
+		// bit reversal
+		for (int i=1, j=0; i<n; i++) {
+			int bit = n >> 1;
+			for (; (j & bit) != 0; bit >>= 1) { j ^= bit; }
+			j ^= bit;
+			if (i < j) {
+				int a = offset + i;
+				int b = offset + j;
+				double t = re[a]; re[a] = re[b]; re[b] = t;
+				t = im[a]; im[a] = im[b]; im[b] = t;
+			}
+		}
+		for (int len=2; len<=n; len<<=1) {
+			double angle = 2*Math.PI/len * (inverse ? 1 : -1);
+			double wr = Math.cos(angle);
+			double wi = Math.sin(angle);
+			for (int i=0; i<n; i+=len) {
+				double cr = 1;
+				double ci = 0;
+				for (int k=0; k<len/2; k++) {
+					int a = offset + i+k;
+					int b = offset + i+k+len/2;
+					double tr = re[b]*cr - im[b]*ci;
+					double ti = re[b]*ci + im[b]*cr;
+					re[b] = re[a] - tr;
+					im[b] = im[a] - ti;
+					re[a] += tr;
+					im[a] += ti;
+					double nr = cr*wr - ci*wi;
+					ci = cr*wi + ci*wr;
+					cr = nr;
+				}
+			}
+		}
+	}
+}
@@ -1,34 +1,33 @@
 package developer.image;
 
 import java.awt.image.BufferedImage;
-import java.awt.image.BufferedImageOp;
-import java.awt.image.ConvolveOp;
-import java.awt.image.Kernel;
+import java.awt.image.DataBufferByte;
 
 public class ImageUtils {
 	
 	public final int matrixres = 10;
 	public int imgaverage;
+	private byte[] grey = new byte[0]; // re-used between frames
+	private BoxBlur boxblur = new BoxBlur();
+	private IntegralImage integral = new IntegralImage(); // block sums, re-used
+	public ImageRegistration registration = new ImageRegistration(); // findCenter, pyramid by default
 	
 	public ImageUtils() {}
 	
 	public int[] convertToGrey(BufferedImage img) { // convert image to 8bit greyscale int array
-		int[] pixelRGB = img.getRGB(0, 0, img.getWidth(), img.getHeight(), null, 0, img.getWidth());
-		
-		int p; 
-		int[] greyimg = new int[img.getWidth()*img.getHeight()];
-		int n = 0;
-		int runningttl = 0;			
-		for (int i=0; i < pixelRGB.length; i++) {
-			int  red   = (pixelRGB[i] & 0x00ff0000) >> 16;
-			int  green = (pixelRGB[i] & 0x0000ff00) >> 8;
-			int  blue  =  pixelRGB[i] & 0x000000ff;
-			p = (int) (red*0.3 + green*0.59 + blue*0.11) ;
-			greyimg[n]=p;
-			n++;
-			runningttl += p;
-		}
-		imgaverage = runningttl/n;
+		int n = img.getWidth()*img.getHeight();
+		if (grey.length < n) { grey = new byte[n]; }
+		imgaverage = Luminance.convert(img, grey, null);
+		int[] greyimg = new int[n];
+		for (int i=0; i<n; i++) { greyimg[i] = grey[i] & 0xff; }
+		return greyimg;
+	}
+
+	/** widen an already greyed frame (FrameCache) to ImageUtils' int per pixel form */
+	public int[] convertToGrey(byte[] grey, int length, int average) {
+		int[] greyimg = new int[length];
+		for (int i=0; i<length; i++) { greyimg[i] = grey[i] & 0xff; }
+		imgaverage = average;
 		return greyimg;
 	}
 
@@ -45,25 +44,12 @@ public class ImageUtils {
 	}
 	
 	public int[][] convertToMatrix(int[] greyimg, int width, int height) {
-//		var result:Array = [];
 		int[][] matrix = new int[width/matrixres][height/matrixres]; //TODO: may need to add or subtract 1?
-		int n;
-		int xx;
-		int yy;
-		int runningttl;
-		for (int x = 0; x < width; x += matrixres) {			
-			for (int y=0; y<height; y+=matrixres) {
-				
-				runningttl = 0;
-				for (xx=0; xx<matrixres; xx++) {
-					for (yy=0; yy<matrixres; yy++) {
-						runningttl += greyimg[x + xx + (y+yy)*width]; 
-					}
-				}
-				
-				n = runningttl/(matrixres*matrixres);				
-				matrix[x/matrixres][y/matrixres] = n - imgaverage;
-														
+		integral.build(greyimg, width, height);
+		for (int x = 0; x < matrix.length; x++) {			
+			for (int y=0; y<matrix[x].length; y++) {
+				int n = integral.sum(x*matrixres, y*matrixres, matrixres, matrixres)/(matrixres*matrixres);				
+				matrix[x][y] = n - imgaverage;
 			}
 		}
 		return matrix;
@@ -79,44 +65,13 @@ public class ImageUtils {
 	 * @return x,y in pixels
 	 */
 	public int[] findCenter(int[][] matrix, int[][] ctrMatrix, int width, int height) {
-		
-		int widthRes = width/matrixres;
-		int heightRes = height/matrixres;
-		int compared = 0;
-		int total = 0;
-		int winningx = 0;
-		int winningy = 0;
-		
-		int winningTotal = 0; // debug log only 
-		int winningCompared = 0; // debug log only
-
-		double winningRatio = 9999999; 
-	
-		for (int x=-(widthRes/2); x<=widthRes/2; x++) {
-			for (int y=-(heightRes/2); y<=heightRes/2; y++) {
-				total = 0;
-				compared =0;
-				for (int xx=0; xx<matrix.length; xx++) {
-					for (int yy=0;yy<matrix[xx].length; yy++) {
-						if (xx+x >= 0 && xx+x < widthRes && yy+y >=0 && yy+y <heightRes) { 
-							total += Math.abs(matrix[xx+x][yy+y] - ctrMatrix[xx][yy]);
-							compared++;
-						}
-					}						
-				}
-				if ( (double) total / (double) compared < winningRatio) {
-					winningRatio = (double) total/ (double) compared;
-					winningTotal = total; // debug log only 
-					winningCompared = compared; // debug log only 
-					winningx = x;
-					winningy = y;
-				}
-			}
-		}
+		int[] offset = registration.register(matrix, ctrMatrix);
+		int winningx = offset[0];
+		int winningy = offset[1];
 		System.out.print("ctr mxy: "+winningx+", "+winningy+", ");
 		winningx = width/2 + (winningx*matrixres) + (matrixres/2);
 		winningy = height/2 + (winningy*matrixres) + (matrixres/2);
-		System.out.println("ctr pxy: "+winningx+","+winningy+", wttl: "+winningRatio+", ttl: "+winningTotal+", comp: "+ winningCompared);
+		System.out.println("ctr pxy: "+winningx+","+winningy+", wttl: "+registration.getScore()+", mode: "+registration.mode);
 		return new int[]{winningx, winningy};	
 	}
 	
@@ -145,16 +100,15 @@ public class ImageUtils {
 		return edgeimg;
 	}
 	
+	/** 3x3 box blur, returns greyscale */
 	public BufferedImage blur (BufferedImage img) {
-	    float[] matrix = {
-	            0.111f, 0.111f, 0.111f, 
-	            0.111f, 0.111f, 0.111f, 
-	            0.111f, 0.111f, 0.111f, 
-	        };
-
-        BufferedImageOp op = new ConvolveOp( new Kernel(3, 3, matrix) );
-        img = op.filter(img, new BufferedImage(320, 240, BufferedImage.TYPE_INT_ARGB));
-        return img;
+		int w = img.getWidth();
+		int h = img.getHeight();
+		if (grey.length < w*h) { grey = new byte[w*h]; }
+		Luminance.convert(img, grey, null);
+		BufferedImage out = new BufferedImage(w, h, BufferedImage.TYPE_BYTE_GRAY);
+		boxblur.blur(grey, ((DataBufferByte) out.getRaster().getDataBuffer()).getData(), w, h, 1);
+		return out;
 	}
 	
 	public int[] convertToBW(int[] greypxls) {
@@ -0,0 +1,100 @@
+package developer.image;
+
+/**
+ * Summed-area table: built once per frame in one pass, after which the sum (or mean, or count
+ * of pixels over a threshold) of any rectangle is four lookups.
+ *
+ * table[x + y*(width+1)] holds the sum of all pixels above and left of x,y, exclusive, so row 0
+ * and column 0 are zero and no edge cases are needed on lookup. The table is int, good for
+ * 8-bit frames up to ~8 megapixels. Kept and reused while the frame size holds.
+ */
+public class IntegralImage {
+
+	private int width;
+	private int height;
+	private int[] table = new int[0];
+
+	public IntegralImage() { }
+
+	private void allocate(int w, int h) {
+		width = w;
+		height = h;
+		if (table.length < (w+1)*(h+1)) { table = new int[(w+1)*(h+1)]; }
+		// top row stays zero, left column is written as each row is built
+		java.util.Arrays.fill(table, 0, w+1, 0);
+	}
+
+	/** build from 8-bit greyscale pixels (unsigned) */
+	public IntegralImage build(byte[] grey, int w, int h) {
+		allocate(w, h);
+		int stride = w+1;
+		for (int y=0; y<h; y++) {
+			int rowsum = 0;
+			int t = (y+1)*stride;
+			table[t] = 0;
+			for (int x=0; x<w; x++) {
+				rowsum += grey[x + y*w] & 0xff;
+				table[t+x+1] = table[t+x+1-stride] + rowsum;
+			}
+		}
+		return this;
+	}
+
+	/** build from greyscale pixels one per int, as ImageUtils keeps them */
+	public IntegralImage build(int[] grey, int w, int h) {
+		allocate(w, h);
+		int stride = w+1;
+		for (int y=0; y<h; y++) {
+			int rowsum = 0;
+			int t = (y+1)*stride;
+			table[t] = 0;
+			for (int x=0; x<w; x++) {
+				rowsum += grey[x + y*w];
+				table[t+x+1] = table[t+x+1-stride] + rowsum;
+			}
+		}
+		return this;
+	}
+
+	/** build a count table, each pixel brighter than threshold counts 1 */
+	public IntegralImage buildCount(byte[] grey, int w, int h, int threshold) {
+		allocate(w, h);
+		int stride = w+1;
+		for (int y=0; y<h; y++) {
+			int rowsum = 0;
+			int t = (y+1)*stride;
+			table[t] = 0;
+			for (int x=0; x<w; x++) {
+				if ((grey[x + y*w] & 0xff) > threshold) { rowsum++; }
+				table[t+x+1] = table[t+x+1-stride] + rowsum;
+			}
+		}
+		return this;
+	}
+
+	public int getWidth() { return width; }
+
+	public int getHeight() { return height; }
+
+	/**
+	 * @return sum of the w x h rectangle at x,y, clipped to the frame
+	 * (a count, if built with buildCount)
+	 */
+	public int sum(int x, int y, int w, int h) {
+		int x0 = Math.max(0, x);
+		int y0 = Math.max(0, y);
+		int x1 = Math.min(width, x+w);
+		int y1 = Math.min(height, y+h);
+		if (x0 >= x1 || y0 >= y1) return 0;
+		int stride = width+1;
+		return table[x1 + y1*stride] - table[x0 + y1*stride] - table[x1 + y0*stride] + table[x0 + y0*stride];
+	}
+
+	/** @return mean of the w x h rectangle at x,y, clipped to the frame, 0 if empty */
+	public int mean(int x, int y, int w, int h) {
+		int cw = Math.min(width, x+w) - Math.max(0, x);
+		int ch = Math.min(height, y+h) - Math.max(0, y);
+		if (cw <= 0 || ch <= 0) return 0;
+		return sum(x, y, w, h) / (cw*ch);
+	}
+}
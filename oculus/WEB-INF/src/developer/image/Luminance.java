@@ -0,0 +1,152 @@
+package developer.image;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+
+/**
+ * Shared greyscale kernel for all vision code.
+ *
+ * Uses the 30-59-11 RGB weighting from http://en.wikipedia.org/wiki/Grayscale#Converting_color_to_grayscale
+ * in 8.8 fixed point (77, 151, 28), reading the image's backing array directly where the
+ * raster layout allows. One pass gives the grey plane, the 256 bin histogram and the mean,
+ * into buffers the caller owns and re-uses; either may be null when not wanted.
+ */
+public class Luminance {
+
+	public static final int RED = 77;
+	public static final int GREEN = 151;
+	public static final int BLUE = 28;
+
+	private Luminance() { }
+
+	/** @return 8-bit grey level of one packed RGB pixel */
+	public static int grey(int rgb) {
+		return (((rgb >> 16) & 0xff)*RED + ((rgb >> 8) & 0xff)*GREEN + (rgb & 0xff)*BLUE) >> 8;
+	}
+
+	/**
+	 * Grey a w x h window of packed RGB pixels
+	 *
+	 * @param argb source pixels
+	 * @param offset index of the window's top left pixel
+	 * @param stride source row length
+	 * @param grey output plane w*h long, row stride w, or null
+	 * @param histogram 256 bins, cleared first, or null
+	 * @return mean grey level
+	 */
+	public static int convert(int[] argb, int offset, int stride, int w, int h, byte[] grey, int[] histogram) {
+		if (histogram != null) { Arrays.fill(histogram, 0); }
+		long total = 0;
+		int n = 0;
+		for (int y=0; y<h; y++) {
+			int i = offset + y*stride;
+			for (int x=0; x<w; x++) {
+				int rgb = argb[i++];
+				int p = (((rgb >> 16) & 0xff)*RED + ((rgb >> 8) & 0xff)*GREEN + (rgb & 0xff)*BLUE) >> 8;
+				if (grey != null) { grey[n] = (byte) p; }
+				if (histogram != null) { histogram[p]++; }
+				total += p;
+				n++;
+			}
+		}
+		return n == 0 ? 0 : (int) (total/n);
+	}
+
+	/**
+	 * Grey interleaved byte samples, as decoded JPEGs come (TYPE_3BYTE_BGR)
+	 *
+	 * @param r offset of the red sample within a pixel, likewise g and b
+	 * @param pixelstride bytes per pixel
+	 */
+	private static int convert(byte[] data, int offset, int stride, int pixelstride, int r, int g, int b,
+			int w, int h, byte[] grey, int[] histogram) {
+		if (histogram != null) { Arrays.fill(histogram, 0); }
+		long total = 0;
+		int n = 0;
+		for (int y=0; y<h; y++) {
+			int i = offset + y*stride;
+			for (int x=0; x<w; x++) {
+				int p = ((data[i+r] & 0xff)*RED + (data[i+g] & 0xff)*GREEN + (data[i+b] & 0xff)*BLUE) >> 8;
+				if (grey != null) { grey[n] = (byte) p; }
+				if (histogram != null) { histogram[p]++; }
+				total += p;
+				n++;
+				i += pixelstride;
+			}
+		}
+		return n == 0 ? 0 : (int) (total/n);
+	}
+
+	/**
+	 * Grey a whole image
+	 *
+	 * @param grey output plane, at least width*height long, or null
+	 * @param histogram 256 bins, cleared first, or null
+	 * @return mean grey level
+	 */
+	public static int convert(BufferedImage img, byte[] grey, int[] histogram) {
+		int w = img.getWidth();
+		int h = img.getHeight();
+		WritableRaster raster = img.getRaster();
+		DataBuffer db = raster.getDataBuffer();
+		SampleModel sm = raster.getSampleModel();
+		boolean direct = raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0;
+
+		switch (img.getType()) {
+		case BufferedImage.TYPE_INT_RGB:
+		case BufferedImage.TYPE_INT_ARGB:
+		case BufferedImage.TYPE_INT_ARGB_PRE:
+			if (direct && db instanceof DataBufferInt && sm instanceof SinglePixelPackedSampleModel) {
+				return convert(((DataBufferInt) db).getData(), db.getOffset(),
+						((SinglePixelPackedSampleModel) sm).getScanlineStride(), w, h, grey, histogram);
+			}
+			break;
+		case BufferedImage.TYPE_3BYTE_BGR:
+		case BufferedImage.TYPE_4BYTE_ABGR:
+		case BufferedImage.TYPE_4BYTE_ABGR_PRE:
+			if (direct && db instanceof DataBufferByte && sm instanceof ComponentSampleModel) {
+				ComponentSampleModel csm = (ComponentSampleModel) sm;
+				int[] bands = csm.getBandOffsets(); // r, g, b (, a)
+				return convert(((DataBufferByte) db).getData(), db.getOffset(), csm.getScanlineStride(),
+						csm.getPixelStride(), bands[0], bands[1], bands[2], w, h, grey, histogram);
+			}
+			break;
+		case BufferedImage.TYPE_BYTE_GRAY:
+			if (direct && db instanceof DataBufferByte && sm instanceof ComponentSampleModel) {
+				ComponentSampleModel csm = (ComponentSampleModel) sm;
+				return convert(((DataBufferByte) db).getData(), db.getOffset(), csm.getScanlineStride(),
+						csm.getPixelStride(), 0, 0, 0, w, h, grey, histogram); // weights sum to 256, so exact
+			}
+			break;
+		}
+
+		// any other layout, a row at a time through getRGB
+		if (histogram != null) { Arrays.fill(histogram, 0); }
+		int[] row = new int[w];
+		long total = 0;
+		int n = 0;
+		for (int y=0; y<h; y++) {
+			img.getRGB(0, y, w, 1, row, 0, w);
+			for (int x=0; x<w; x++) {
+				int p = grey(row[x]);
+				if (grey != null) { grey[n] = (byte) p; }
+				if (histogram != null) { histogram[p]++; }
+				total += p;
+				n++;
+			}
+		}
+		return n == 0 ? 0 : (int) (total/n);
+	}
+
+	/** @return mean grey level of the image, light meter */
+	public static int mean(BufferedImage img) {
+		return convert(img, null, null);
+	}
+}
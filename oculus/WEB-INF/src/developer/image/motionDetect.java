@@ -1,14 +1,11 @@
 package developer.image;
 
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
-
-import javax.imageio.ImageIO;
-
 import org.red5.server.api.IConnection;
-import org.red5.server.api.service.IServiceCapableConnection;
 
 import oculus.Application;
+import oculus.Frame;
+import oculus.FrameCache;
+import oculus.FrameGrabBroker;
 import oculus.State;
 import oculus.Util;
 
@@ -20,6 +17,9 @@ public class motionDetect {
 	private int threshold;
 	private int[] lastMassCtr=new int[2];
 	
+	/** decode every other pixel and row, centre of mass doesn't need the full frame */
+	public static final int SUBSAMPLE = 2;
+	
 	public motionDetect(Application a, IConnection g, int t) {
 		threshold = t;
 		this.grabber = g;
@@ -38,40 +38,26 @@ public class motionDetect {
 					int frameno = 0;
 					while (state.getBoolean(State.values.motiondetectwatching)) { // TODO: time out after a while
 						
-						if(state.getBoolean(State.values.framegrabbusy.name()) || 
-								 !(state.get(State.values.stream).equals("camera") || 
-										 state.get(State.values.stream).equals("camandmic"))) {
-
-							app.message("framegrab busy or stream unavailable", null,null);
+						Frame frame = FrameGrabBroker.getReference().await(FrameGrabBroker.Size.medium);
+						if (frame == null) {
+							app.message("frame grab failed or stream unavailable", null,null);
 							state.set(State.values.motiondetectwatching, false);
 							return;
 						}
 						
-						state.set(State.values.framegrabbusy.name(), true);
-						IServiceCapableConnection sc = (IServiceCapableConnection) grabber;
-						sc.invoke("framegrabMedium", new Object[] {});
-						
-						while (state.getBoolean(State.values.framegrabbusy)) {
-							int n = 0;
-							Thread.sleep(5);
-							n++;
-							if (n> 2000) {  // give up after 10 seconds 
-								Util.debug("frame grab timed out", this);
-								state.set(State.values.framegrabbusy, false);
-								state.set(State.values.motiondetectwatching, false);
-								return;
-							}
-						}
-						
-						ByteArrayInputStream in = new ByteArrayInputStream(Application.framegrabimg);
-						BufferedImage img = ImageIO.read(in);
-						int[] greypxls = imageUtils.convertToGrey(img);
+						FrameCache.Entry decoded = FrameCache.getReference().get(frame);
+						FrameCache.Grey preview = decoded.preview(SUBSAMPLE);
+						if (preview == null) continue; // lapped by newer frames, try again
+						int width = preview.width;
+						int height = preview.height;
+						int[] greypxls = imageUtils.convertToGrey(preview.pixels, width*height, preview.mean);
 						int[] bwpxls = imageUtils.convertToBW(greypxls);
 
 						int sensitivity = 4;
-						int[] ctrxy = imageUtils.middleMass(bwpxls, img.getWidth(), img.getHeight(), sensitivity);
+						int[] ctrxy = imageUtils.middleMass(bwpxls, width, height, sensitivity);
 						if (frameno >= 1) { // ignore frames 0
-							int compared = Math.abs(ctrxy[0]-lastMassCtr[0])+Math.abs(ctrxy[1]-lastMassCtr[1]);
+							// back to full size pixels, so threshold means what it always has
+							int compared = (Math.abs(ctrxy[0]-lastMassCtr[0])+Math.abs(ctrxy[1]-lastMassCtr[1]))*SUBSAMPLE;
 //							app.message("compared = "+compared, null, null); // debug
 							if (compared> threshold) { //motion detected above noise level
 //								lastMassCtr[0] = -1;
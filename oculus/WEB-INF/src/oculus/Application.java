@@ -5,6 +5,7 @@ import java.io.File;
 import java.io.IOException;
 import java.util.Collection;
 import java.util.Set;
+import java.util.concurrent.Future;
 
 import oculus.commport.AbstractArduinoComm;
 import oculus.commport.Discovery;
@@ -46,7 +47,6 @@ public class Application extends MultiThreadedApplicationAdapter {
 	public TelnetServer commandServer = null;
 	public developer.OpenNIRead openNIRead = null;
 	public Speech speech = new Speech();
-	public static byte[] framegrabimg  = null;
 	public Boolean passengerOverride = false;
 	public long lastcommandtime = 0;
 	public static BufferedImage processedImage = null;
@@ -58,6 +58,7 @@ public class Application extends MultiThreadedApplicationAdapter {
 		FrameGrabHTTP.setApp(this);
 		RtmpPortRequest.setApp(this);
 		AuthGrab.setApp(this);
+		FrameWriter.setApp(this);
 		initialize();
 	}
 
@@ -141,6 +142,7 @@ public class Application extends MultiThreadedApplicationAdapter {
 		
 		if (connection.equals(grabber)) {
 			grabber = null;
+			FrameGrabBroker.getReference().setGrabber(null);
 			// log.info("grabber disconnected");
 			// wait a bit, see if still no grabber, THEN reload
 			new Thread(new Runnable() {
@@ -170,6 +172,7 @@ public class Application extends MultiThreadedApplicationAdapter {
 			state.set(State.values.stream, "stop");
 		}
 		grabber = Red5.getConnectionLocal();
+		FrameGrabBroker.getReference().setGrabber(grabber);
 		String str = "awaiting&nbsp;connection";
 		if (state.get(State.values.driver.name()) != null) {
 			str = state.get(State.values.driver.name()) + "&nbsp;connected";
@@ -614,7 +617,11 @@ public class Application extends MultiThreadedApplicationAdapter {
 		case reloadserverhtml: messageGrabber("server html reload",null); break;
 		case motiondetectgo: new motionDetect(this, grabber, Integer.parseInt(str)); break;
 		case motiondetectcancel: state.delete(State.values.motiondetectwatching); break;
-		case rssadd: RssFeed feed = new RssFeed(); feed.newItem(str);
+		case rssadd: RssFeed feed = new RssFeed(); feed.newItem(str); break;
+		case timelapse: timeLapse(str); break;
+		case observers: messageplayer(state.getDispatcher().toString(), null, null); break;
+		case statehistory: stateHistory(str); break;
+		case statedump: stateDump(); break;
 
 		}
 	}
@@ -833,22 +840,12 @@ public class Application extends MultiThreadedApplicationAdapter {
 		}
 	}
 
-	/**  */
-	public boolean frameGrab() {
-
-		 if(state.getBoolean(State.values.framegrabbusy.name()) || 
-				 !(state.get(State.values.stream).equals("camera") || 
-						 state.get(State.values.stream).equals("camandmic"))) {
-			 messageplayer("stream unavailable or framegrab busy, command dropped", null, null);
-			 return false;
-		 }
-
-		if (grabber instanceof IServiceCapableConnection) {
-			IServiceCapableConnection sc = (IServiceCapableConnection) grabber;
-			sc.invoke("framegrab", new Object[] {});
-			state.set(State.values.framegrabbusy.name(), true);
+	/** @return next full size frame, shared with any grab already in flight */
+	public Future<Frame> frameGrab() {
+		if (!FrameGrabBroker.getReference().streaming()) {
+			messageplayer("stream unavailable, command dropped", null, null);
 		}
-		return true;
+		return FrameGrabBroker.getReference().grab(FrameGrabBroker.Size.full);
 	}
 
 	/** */
@@ -891,16 +888,10 @@ public class Application extends MultiThreadedApplicationAdapter {
 		}
 		*/
 		int BCurrentlyAvailable = _RAWBitmapImage.bytesAvailable();
-		int BWholeSize = _RAWBitmapImage.length(); // Put the Red5 ByteArray
-													// into a standard Java
-													// array of bytes
-		byte c[] = new byte[BWholeSize];
-		_RAWBitmapImage.readBytes(c);
+		int BWholeSize = _RAWBitmapImage.length(); 
 		if (BCurrentlyAvailable > 0) {
-			state.set(State.values.framegrabbusy.name(), false);
-//			FrameGrabHTTP.img = c;
-//			AuthGrab.img = c;
-			framegrabimg = c;
+			// straight into a ring slot, no copy per frame
+			FrameGrabBroker.getReference().completed(_RAWBitmapImage, BWholeSize);
 		}
 	}
 
@@ -1930,6 +1921,55 @@ public class Application extends MultiThreadedApplicationAdapter {
 		restart();
 	}
 	
+	/** 'start' [seconds], 'stop', or blank for status */
+	private void timeLapse(String str) {
+		TimeLapse timelapse = TimeLapse.getReference();
+		String args[] = str.trim().split("\\s+");
+		if (args[0].equals("start")) {
+			int seconds = 60;
+			if (args.length > 1) {
+				try { seconds = Integer.parseInt(args[1]); }
+				catch (NumberFormatException e) {
+					messageplayer("timelapse start requires seconds between frames", null, null);
+					return;
+				}
+			}
+			timelapse.start(seconds);
+			messageplayer("time lapse recording every "+state.get(State.values.timelapse)+" s", null, null);
+		}
+		else if (args[0].equals("stop")) {
+			timelapse.stop();
+			messageplayer("time lapse recording stopped", null, null);
+		}
+		else {
+			String status = timelapse.isRecording() ? "recording every "+state.get(State.values.timelapse)+" s" : "not recording";
+			messageplayer("time lapse "+status+"<br>"+timelapse.list().replace("\n", "<br>"), null, null);
+		}
+	}
+	
+	/** '[key] [seconds]', all keys and 60 s if missing */
+	private void stateHistory(String str) {
+		String key = null;
+		int seconds = 60;
+		if (str != null) {
+			for (String arg : str.trim().split("\\s+")) {
+				if (arg.length() == 0) continue;
+				try { seconds = Integer.parseInt(arg); }
+				catch (NumberFormatException e) { key = arg; }
+			}
+		}
+		messageplayer(state.getJournal().history(key, seconds).replace("\n", "<br>"), null, null);
+	}
+	
+	private void stateDump() {
+		try {
+			File file = state.getJournal().dump();
+			messageplayer("state journal written to " + file.getPath(), null, null);
+		} catch (IOException e) {
+			messageplayer("state journal dump failed: " + e.getLocalizedMessage(), null, null);
+		}
+	}
+	
 	private void setStreamActivityThreshold(String str) { 
 		String stream = state.get(State.values.stream);
 		String val[] = str.split("\\D+");
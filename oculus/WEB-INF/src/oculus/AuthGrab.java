@@ -2,6 +2,9 @@ package oculus;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.servlet.*;
 import javax.servlet.http.*;
@@ -59,14 +62,15 @@ public class AuthGrab extends HttpServlet {
 
         if(login(user, pass)) {	
         
-        	// ready a responce 
-    		res.setContentType("image/jpeg");
-    		OutputStream out = res.getOutputStream();
-        	
-        	// only get new if ask ... could be faster to send the last one if was just taken 
-        	if(mode!=null) if(mode.equals("update")) getImage();
+        	// only get new if asked, or if the last one is older than maxage ms 
+        	Frame frame = FrameGrabBroker.getReference().getLast(FrameGrabBroker.Size.full);
+        	long maxage = FrameResponse.maxAge(req);
+        	if ("update".equals(mode) || (maxage > 0 && FrameResponse.fresh(frame, maxage) == null)) {
+        		Frame grabbed = getImage();
+        		if (grabbed != null) frame = grabbed;
+        	}
         	
-        	sendImage(out);
+        	FrameResponse.send(req, res, frame);
         
         } else {
           
@@ -79,7 +83,8 @@ public class AuthGrab extends HttpServlet {
         }  
 	}
 	
-	public void getImage(){
+	/** @return new frame, or null if none came */
+	public Frame getImage(){
 		
 		// long start = System.currentTimeMillis();		
 		
@@ -93,32 +98,24 @@ public class AuthGrab extends HttpServlet {
     		// app.playerCallServer(PlayerCommands.publish, "camera");
     		app.publish("camera");
     		
-    		// wait for any value in state for 'publish'
-    		if( ! state.block(PlayerCommands.publish.toString(), "cam", 30000)){
+    		// wait for the stream to be camera or camandmic
+    		if(state.await(State.values.stream, State.Condition.startsWith("cam"), 30000) == null){
     			Util.log("timeout trying to turn on camera...", this);
-    			return;
+    			return null;
     		}
     	}
 		
 		// wait for result
-		if (app.frameGrab()) {
-			if( ! state.block(oculus.State.values.framegrabbusy.name(), "false", 700)){
-				Util.debug("getImage(), timeout ", this);
-				return;
-			}
-			
+		try {
+			return app.frameGrab().get(700, TimeUnit.MILLISECONDS);
 			// Util.debug("frame grab done in " + (System.currentTimeMillis() - start) + " ms", this);
-		} // else { Util.debug("frame grab busy?", this); }
-	}
-	
-	public void sendImage(OutputStream out) throws IOException {
-	
-		if(Application.framegrabimg==null) return;
-		
-		// long start = System.currentTimeMillis();
-		for (int i=0; i<Application.framegrabimg.length; i++) out.write(Application.framegrabimg[i]);
-		out.close();
-		   
-		// Util.debug("frame grab done sending in " + (System.currentTimeMillis() - start) + " ms", this);			
+		} catch (TimeoutException e) {
+			Util.debug("getImage(), timeout ", this);
+		} catch (ExecutionException e) {
+			Util.debug("getImage(), " + e.getCause().getMessage(), this);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return null;
 	}
 }
@@ -1,16 +1,13 @@
 package oculus;
 
-import java.awt.image.BufferedImage;
-import java.awt.image.BufferedImageOp;
-import java.awt.image.ConvolveOp;
 import java.awt.image.DataBufferInt;
-import java.awt.image.Kernel;
 import java.awt.image.Raster;
-import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
-import javax.imageio.ImageIO;
+import developer.image.BoxBlur;
 
 import oculus.commport.AbstractArduinoComm;
 import oculus.commport.LightsComm;
@@ -34,12 +31,16 @@ public class AutoDock {
 	private boolean autodockingcamctr = false;
 	private int autodockctrattempts = 0;
 	private OculusImage oculusImage = new OculusImage();
+	private volatile int[] trackwindow = null; // x,y,width,height to search first on next find
+	private BoxBlur blur = new BoxBlur();
+	private FrameGrabBroker broker = FrameGrabBroker.getReference();
 
 
 	public static final String UNDOCKED = "un-docked";
 	public static final String DOCKED = "docked";
 	public static final String DOCKING = "docking";
 	public static final String MOVINGFORWARD = State.values.movingforward.name();
+	public static final int TRACK_MIN = 80; // smallest tracking window, pixels
 	
 	public AutoDock(Application theapp, IConnection thegrab, AbstractArduinoComm com, LightsComm light){
 		this.app = theapp;
@@ -50,6 +51,11 @@ public class AutoDock {
 //		oculusImage = new OculusImage(app);
 		docktarget = settings.readSetting(GUISettings.docktarget);
 		oculusImage.dockSettings(docktarget);
+		try {
+			oculusImage.search = OculusImage.ThresholdSearch.valueOf(settings.readSetting(ManualSettings.docksearch));
+		} catch (Exception e) {
+			Util.log("unknown docksearch setting, using " + oculusImage.search, this);
+		}
 	}
 	
 	public void autoDock(String str) {
@@ -58,6 +64,7 @@ public class AutoDock {
 		Util.debug(str, this);
 		if (cmd[0].equals("cancel")) {
 			state.set(State.values.autodocking, false);
+			trackwindow = null;
 			app.message("auto-dock ended","multiple","cameratilt " +app.camTiltPos()+" autodockcancelled blank motion stopped");
 			System.out.println("OCULUS: autodock cancelled");
 		}
@@ -104,6 +111,7 @@ public class AutoDock {
 					
 					state.set(State.values.autodocking, false);	
 					state.set(State.values.docking, false);	
+					trackwindow = null;
 					app.message("auto-dock target not found, try again","multiple","autodockcancelled blank");
 					System.out.println("OCULUS: target lost");
 
@@ -216,6 +224,7 @@ public class AutoDock {
 									System.out.println("OCULUS: " + state.get(State.values.driver) +" docking timed out");
 									state.set(State.values.dockstatus, UNDOCKED);
 									if (state.getBoolean(State.values.autodocking)) {
+										trackwindow = null; // backing up, target could be anywhere
 										new Thread(new Runnable() { public void run() { try {
 											comport.speedset("fast");
 											comport.goBackward();
@@ -315,6 +324,7 @@ public class AutoDock {
 		
 		if (w*h < s1) { 
 			if (Math.abs(x-160) > 10 || Math.abs(y-120) > 25) { // clicksteer and go (y was >50)
+				trackTarget(x, y, w, h, x-160, y-120, 1500);
 				comport.clickSteer((x-160)*rescomp+" "+(y-120)*rescomp);
 				new Thread(new Runnable() { 
 
@@ -330,6 +340,7 @@ public class AutoDock {
 				} catch (Exception e) { e.printStackTrace(); } } }).start();
 			}
 			else { // go only 
+				trackTarget(x, y, w, h, 0, 0, 1500);
 				new Thread(new Runnable() { public void run() { try {
 					comport.speedset("fast");
 					comport.goForward();
@@ -351,6 +362,7 @@ public class AutoDock {
 				autodockcompdir += x + (dockx - 160);
 				//System.out.println("comp: "+autodockcompdir);
 				if (Math.abs(autodockcompdir-dockx) > 10 || Math.abs(y-120) > 30) { // steer and go 
+					trackTarget(x, y, w, h, autodockcompdir-dockx, y-120, 450);
 					comport.clickSteer((autodockcompdir-dockx)*rescomp+" "+(y-120)*rescomp); 
 					new Thread(new Runnable() { public void run() { try {
 						Thread.sleep(1500); 
@@ -363,6 +375,7 @@ public class AutoDock {
 					} catch (Exception e) { e.printStackTrace(); } } }).start();
 				}
 				else { // go only 
+					trackTarget(x, y, w, h, 0, 0, 500);
 					new Thread(new Runnable() { public void run() { try {
 						comport.speedset("fast");
 						comport.goForward();
@@ -376,6 +389,7 @@ public class AutoDock {
 			else { // !autodockingcamctr
 				autodockingcamctr = true;
 				if (Math.abs(x-dockx) > 10 || Math.abs(y-120) > 15) { // (y was >30)
+					trackTarget(x, y, w, h, x-dockx, y-120, 0);
 					comport.clickSteer((x-dockx)*rescomp+" "+(y-120)*rescomp);
 					new Thread(new Runnable() { public void run() { try {
 						Thread.sleep(1500);
@@ -383,6 +397,7 @@ public class AutoDock {
 					} catch (Exception e) { e.printStackTrace(); } } }).start();
 				}
 				else {
+					trackTarget(x, y, w, h, 0, 0, 0);
 					dockGrab("find",0,0);
 				}
 			}
@@ -390,6 +405,7 @@ public class AutoDock {
 		if (w*h >= s2) {
 			if ((Math.abs(x-dockx) > 5) && autodockctrattempts <= 10) {
 				autodockctrattempts ++;
+				trackTarget(x, y, w, h, x-dockx, y-120, 0);
 				comport.clickSteer((x-dockx)*rescomp+" "+(y-120)*rescomp);
 				new Thread(new Runnable() { public void run() { try {
 					Thread.sleep(1500);
@@ -400,6 +416,7 @@ public class AutoDock {
 				if (Math.abs(slopedeg-dockslopedeg) > 1.6 || autodockctrattempts >10) { // backup and try again
 //					System.out.println("backup "+dockslopedeg+" "+slopedeg+" ctrattempts:"+autodockctrattempts);
 					autodockctrattempts = 0; 
+					trackwindow = null; // backing up, target could be anywhere
 					int comp = 80;
 					if (slope < dockslope) { comp = -80; }
 					x += comp;
@@ -427,65 +444,42 @@ public class AutoDock {
 	}
 	
 	
+	/** 
+	 * Predict where the target will be on the next find, from where it is now and the
+	 * motion about to be commanded, so dockGrab can search a window around it first
+	 * 
+	 * @param x target center
+	 * @param y target center
+	 * @param steerx clickSteer offset in frame pixels, target shifts back by about this much
+	 * @param steery
+	 * @param forward ms driven forward, target grows as the dock gets closer
+	 */
+	private void trackTarget(int x, int y, int w, int h, int steerx, int steery, int forward) {
+		float growth = 1f + forward/3000f;
+		int ww = Math.max(TRACK_MIN, (int) (w*growth*2));
+		int wh = Math.max(TRACK_MIN, (int) (h*growth*2));
+		trackwindow = new int[]{x-steerx-ww/2, y-steery-wh/2, ww, wh};
+	}
+	
 	public void getLightLevel() {
 
-		 if(state.getBoolean(State.values.framegrabbusy.name()) || 
-				 !(state.get(State.values.stream).equals("camera") || 
-						 state.get(State.values.stream).equals("camandmic"))) {
-			 app.message("framegrab busy or stream unavailable", null,null);
-			 return;
-		 }
-
-		if (grabber instanceof IServiceCapableConnection) {
-			state.set(State.values.framegrabbusy.name(), true);
-			IServiceCapableConnection sc = (IServiceCapableConnection) grabber;
-			sc.invoke("framegrabMedium", new Object[] {});
-			app.message("getlightlevel command received", null, null);
+		if (!broker.streaming()) {
+			app.message("stream unavailable", null,null);
+			return;
 		}
+		final Future<Frame> grab = broker.grab(FrameGrabBroker.Size.medium);
+		app.message("getlightlevel command received", null, null);
 		
 		new Thread(new Runnable() {
 			public void run() {
 				try {
-					int n = 0;
-					while (state.getBoolean(State.values.framegrabbusy)) {
-						try {
-							Thread.sleep(5);
-						} catch (InterruptedException e) {
-							e.printStackTrace();
-						} 
-						n++;
-						if (n> 2000) {  // give up after 10 seconds 
-							state.set(State.values.framegrabbusy, false);
-							break;
-						}
-					}
-					
+					FrameCache.Entry frame = FrameCache.getReference().get(grab.get());
 					Util.debug("img received, processing...", this);
 					
-					if (Application.framegrabimg != null) {
-						//convert bytes to image
-						ByteArrayInputStream in = new ByteArrayInputStream(Application.framegrabimg);
-						BufferedImage img = ImageIO.read(in);
-
-						/* change to greyscale */
-//						ColorSpace cs = ColorSpace.getInstance(ColorSpace.CS_GRAY);
-//						ColorConvertOp op = new ColorConvertOp(cs, null);
-//						img = op.filter(img, null);
-						
-						n = 0;
-						int avg = 0;
-						for (int y = 0; y < img.getHeight(); y++) {
-						    for (int x = 0; x < img.getWidth(); x++) {
-								int  rgb   = img.getRGB(x, y); 
-								int  red   = (rgb & 0x00ff0000) >> 16;
-					    		int  green = (rgb & 0x0000ff00) >> 8;
-					    		int  blue  =  rgb & 0x000000ff;
-						        avg += red*0.3 + green*0.59 + blue*0.11 ; // grey using 39-59-11 rule 
-						        n++;
-						    }
-						}
-						avg = avg / n;
-						app.message("getlightlevel: "+Integer.toString(avg), null, null);
+					// the mean of a 1/16th decode is near enough for a light meter
+					FrameCache.Grey preview = frame.preview(4);
+					if (preview != null) {
+						app.message("getlightlevel: "+Integer.toString(preview.mean), null, null);
 					}
 
 				} catch (Exception e) { e.printStackTrace(); }
@@ -496,56 +490,44 @@ public class AutoDock {
 	public void dockGrab(final String mode, final int x, final int y) {
 		state.set(oculus.State.values.dockgrabbusy, true);
 		
-		if(state.getBoolean(State.values.framegrabbusy.name()) || 
-				 !(state.get(State.values.stream).equals("camera") || 
-						 state.get(State.values.stream).equals("camandmic"))) {
-			app.message("framegrab busy or stream unavailable", null,null);
-		return;
-		}
-
-		if (grabber instanceof IServiceCapableConnection) {
-			state.set(State.values.framegrabbusy.name(), true);
-			IServiceCapableConnection sc = (IServiceCapableConnection) grabber;
-			sc.invoke("framegrabMedium", new Object[] {});
+		if (!broker.streaming()) {
+			app.message("stream unavailable", null,null);
+			state.set(State.values.dockgrabbusy, false);
+			notGrabbed(mode);
+			return;
 		}
+		final Future<Frame> grab = broker.grab(FrameGrabBroker.Size.medium);
 		
 		new Thread(new Runnable() {
 			public void run() {
 				try {
-					int n = 0;
-					while (state.getBoolean(State.values.framegrabbusy)) {
-						try {
-							Thread.sleep(5);
-						} catch (InterruptedException e) {
-							e.printStackTrace();
-						} 
-						n++;
-						if (n> 2000) {  // give up after 10 seconds 
-							Util.debug("frame grab timed out", this);
-							state.set(State.values.framegrabbusy, false);
-							break;
-						}
+					FrameCache.Entry frame = null;
+					byte[] grey = null;
+					try {
+						frame = FrameCache.getReference().get(grab.get());
+						grey = frame.grey(); // null if the ring overwrote it first
+					} catch (ExecutionException e) {
+						Util.debug("frame grab failed: " + e.getCause().getMessage(), this);
+					} catch (InterruptedException e) {
+						Util.log("dock frame grab interrupted", this);
+					} catch (Exception e) {
+						Util.log("dock frame unreadable: " + e.getLocalizedMessage(), this);
+					}
+					if (grey == null) { 
+						notGrabbed(mode);
+						return;
 					}
 					
-					if (Application.framegrabimg != null) {
+					if (grey != null) {
 						Util.debug("getDock(): img received, processing...", this);
 						
-						//convert bytes to image
-						ByteArrayInputStream in = new ByteArrayInputStream(Application.framegrabimg);
-						BufferedImage img = ImageIO.read(in);
-						
-					    float[] matrix = {
-					            0.111f, 0.111f, 0.111f, 
-					            0.111f, 0.111f, 0.111f, 
-					            0.111f, 0.111f, 0.111f, 
-					        };
-
-				        BufferedImageOp op = new ConvolveOp( new Kernel(3, 3, matrix) );
-				        img = op.filter(img, new BufferedImage(320, 240, BufferedImage.TYPE_INT_ARGB));
+						// smooth the shared grey plane, 3x3 box as before
+						int w = frame.getWidth();
+						int h = frame.getHeight();
+						byte[] smoothed = blur.blur(grey, w, h, 1);
 				        
-				        int[] argb = img.getRGB(0, 0, 320, 240, null, 0, 320);
 				        if (mode.equals("calibrate")) {
-				        	String[] results = oculusImage.findBlobStart(x,y,img.getWidth(), img.getHeight(), argb);
+				        	String[] results = oculusImage.findBlobStart(x,y,w,h, smoothed);
 				        	autoDock("dockgrabbed calibrate "+results[0]+" "+results[1]+" "+results[2]+" "+results[3]+" "+results[4]+" "+ 
 				        				results[5]+" "+results[6]+" "+results[7]+" "+results[8] );
 				        	//result = x,y,width,height,slope,lastBlobRatio,lastTopRatio,lastMidRatio,lastBottomRatio
@@ -555,9 +537,10 @@ public class AutoDock {
 				        }
 						if (mode.equals("start")) {
 							oculusImage.lastThreshhold = -1;
+							trackwindow = null;
 						}
 						if (mode.equals("find") || mode.equals("start")) {
-							String results[] = oculusImage.findBlobs(argb, 320, 240);
+							String results[] = oculusImage.findBlobs(smoothed, w, h, trackwindow);
 							String str = results[0]+" "+results[1]+" "+results[2]+" "+results[3]+" "+results[4]; 
 							// results = x,y,width,height,slope
 							autoDock("dockgrabbed find "+str);
@@ -565,7 +548,7 @@ public class AutoDock {
 						
 						if (mode.equals("test")) {
 							oculusImage.lastThreshhold = -1;
-							String results[] = oculusImage.findBlobs(argb, 320, 240);
+							String results[] = oculusImage.findBlobs(smoothed, w, h);
 							String str = results[0]+" "+results[1]+" "+results[2]+" "+results[3]+" "+results[4]; 
 							// results = x,y,width,height,slope
 							autoDock("dockgrabbed find "+str);
@@ -573,7 +556,6 @@ public class AutoDock {
 							app.sendplayerfunction("processedImg", "load");
 						}
 						
-			        	state.set(State.values.dockgrabbusy.name(), false);
 
 				        	
 //						OculusImage oi = new OculusImage();
@@ -585,8 +567,18 @@ public class AutoDock {
 
 					}
 				} catch (Exception e) { e.printStackTrace(); }
+				finally { state.set(State.values.dockgrabbusy, false); }
 			}
 		}).start();
 	}
+	
+	/** no frame to look in, so nothing found, which ends an autodock run in progress */
+	private void notGrabbed(String mode) {
+		if (mode.equals("calibrate")) { 
+			app.message("dock calibrate failed, no frame from camera", null, null);
+			return;
+		}
+		autoDock("dockgrabbed find 0 0 0 0 0");
+	}
 }
 
@@ -0,0 +1,307 @@
+package oculus;
+
+import java.util.Arrays;
+
+import developer.image.IntegralImage;
+
+/**
+ * Two-pass union-find connected component labeling for greyscale frames.
+ *
+ * The frame is binarized against a threshold into a long[] bitset, then one sweep labels every 4-connected
+ * region of equal value (white AND black) into a single int[] label map, so the
+ * dock target and the dark center blob inside it come out of the same pass.
+ * Area, bounding box, centroid, luminance and the bottom-most pixel are collected for every
+ * component as labels are resolved. Left/middle/right third pixel counts are worked out on
+ * first ask, from a summed-area table of the thresholded frame when the blob is the only
+ * white in its bounding box (the usual case), else by counting labels within the box, so
+ * matching a blob against the dock target never has to rescan the frame.
+ *
+ * Component ids are 1..getCount(), numbered in the order their first pixel is met
+ * scanning the frame from the top left (same order the old seed-scan found them in).
+ * All buffers are kept and reused while the frame size stays the same.
+ */
+public class BlobLabeler {
+
+	private int width;
+	private int height;
+	private int count;
+	private long[] mask;    // thresholded frame, one bit per pixel
+	private int[] labels;   // component id per pixel
+	private int[] parent;   // union-find forest over provisional labels
+	private int[] remap;    // provisional label to final component id
+
+	// per component stats, indexed by component id
+	private boolean[] white;
+	private int[] area;
+	private int[] minx;
+	private int[] maxx;
+	private int[] miny;
+	private int[] maxy;
+	private long[] sumx;
+	private long[] sumy;
+	private int[] luminance;  // sum of greyscale values
+	private int[] last;       // highest pixel index, start of the bottom edge
+	private int[] top;        // pixel counts in left, middle and right thirds of the bounding box
+	private int[] mid;
+	private int[] bottom;
+	private int[] split1;     // last column of the left third, first column of the right
+	private int[] split2;
+	private boolean[] thirds; // counted yet, per component
+	private byte[] grey;      // last frame and threshold, for the white count table
+	private int threshold;
+	private IntegralImage whites = new IntegralImage();
+	private boolean whitesBuilt;
+
+	public BlobLabeler() { }
+
+	/** size working buffers, only re-allocates if the frame (or window) outgrows them */
+	private void allocate(int w, int h) {
+		width = w;
+		height = h;
+		if (labels != null && labels.length >= w*h) return;
+		mask = new long[(w*h+63) >>> 6];
+		labels = new int[w*h];
+		parent = new int[w*h+1];
+		remap = new int[w*h+1];
+	}
+
+	private void allocateStats(int n) {
+		if (area != null && area.length > n) return;
+		white = new boolean[n+1];
+		area = new int[n+1];
+		minx = new int[n+1];
+		maxx = new int[n+1];
+		miny = new int[n+1];
+		maxy = new int[n+1];
+		sumx = new long[n+1];
+		sumy = new long[n+1];
+		luminance = new int[n+1];
+		last = new int[n+1];
+		top = new int[n+1];
+		mid = new int[n+1];
+		bottom = new int[n+1];
+		split1 = new int[n+1];
+		split2 = new int[n+1];
+		thirds = new boolean[n+1];
+	}
+
+	private boolean bit(int p) {
+		return ((mask[p >>> 6] >>> p) & 1L) != 0;
+	}
+
+	private int find(int l) {
+		while (parent[l] != l) {
+			parent[l] = parent[parent[l]]; // path halving
+			l = parent[l];
+		}
+		return l;
+	}
+
+	/** join two trees, lowest label stays root so component order follows scan order */
+	private int union(int a, int b) {
+		a = find(a);
+		b = find(b);
+		if (a < b) { parent[b] = a; return a; }
+		parent[a] = b;
+		return b;
+	}
+
+	/**
+	 * Label all components of the frame thresholded at threshold
+	 *
+	 * @param grey 8-bit greyscale pixels (unsigned), not modified
+	 * @param w frame width
+	 * @param h frame height
+	 * @param threshold pixels brighter than this are white
+	 * @return number of components found, white and black
+	 */
+	public int label(byte[] grey, int w, int h, int threshold) {
+		allocate(w, h);
+
+		// binarize
+		Arrays.fill(mask, 0, (w*h+63) >>> 6, 0L);
+		for (int p=0; p<w*h; p++) {
+			if ((grey[p] & 0xff) > threshold) { mask[p >>> 6] |= 1L << p; }
+		}
+
+		// pass 1: provisional labels, record equivalences
+		int next = 0;
+		int p = 0;
+		for (int y=0; y<h; y++) {
+			for (int x=0; x<w; x++) {
+				boolean v = bit(p);
+				boolean west = x > 0 && bit(p-1) == v;
+				boolean north = y > 0 && bit(p-w) == v;
+				if (west && north) {
+					int l = labels[p-1];
+					int n = labels[p-w];
+					labels[p] = (l == n) ? l : union(l, n);
+				}
+				else if (west) { labels[p] = labels[p-1]; }
+				else if (north) { labels[p] = labels[p-w]; }
+				else {
+					next++;
+					parent[next] = next;
+					labels[p] = next;
+				}
+				p++;
+			}
+		}
+
+		// resolve: roots are always lower than their children, so one forward walk flattens
+		count = 0;
+		for (int l=1; l<=next; l++) {
+			int root = find(l);
+			if (root == l) { count++; remap[l] = count; }
+			else { remap[l] = remap[root]; }
+		}
+
+		// pass 2: final labels and component stats
+		allocateStats(count);
+		for (int c=1; c<=count; c++) {
+			area[c] = 0;
+			minx[c] = w;
+			maxx[c] = -1;
+			miny[c] = h;
+			maxy[c] = -1;
+			sumx[c] = 0;
+			sumy[c] = 0;
+			luminance[c] = 0;
+			thirds[c] = false;
+		}
+		p = 0;
+		for (int y=0; y<h; y++) {
+			for (int x=0; x<w; x++) {
+				int c = remap[labels[p]];
+				labels[p] = c;
+				if (area[c] == 0) { white[c] = bit(p); }
+				area[c]++;
+				if (x < minx[c]) { minx[c] = x; }
+				if (x > maxx[c]) { maxx[c] = x; }
+				if (y < miny[c]) { miny[c] = y; }
+				if (y > maxy[c]) { maxy[c] = y; }
+				sumx[c] += x;
+				sumy[c] += y;
+				luminance[c] += grey[p] & 0xff;
+				last[c] = p;
+				p++;
+			}
+		}
+
+		this.grey = grey;
+		this.threshold = threshold;
+		whitesBuilt = false;
+		return count;
+	}
+
+	/** 
+	 * Left/middle/right third pixel counts of white component c, bottom row excluded, 
+	 * boundary columns count toward both neighbouring thirds
+	 */
+	private void countThirds(int c) {
+		if (thirds[c]) return;
+		thirds[c] = true;
+		split1[c] = (int) (minx[c]+(maxx[c]-minx[c])*0.333);
+		split2[c] = (int) (minx[c]+(maxx[c]-minx[c])*0.666);
+		top[c] = 0;
+		mid[c] = 0;
+		bottom[c] = 0;
+		int rows = maxy[c]-miny[c];
+		if (!white[c] || rows == 0) return;
+		
+		if (!whitesBuilt) {
+			whites.buildCount(grey, width, height, threshold);
+			whitesBuilt = true;
+		}
+		int boxw = maxx[c]-minx[c]+1;
+		if (whites.sum(minx[c], miny[c], boxw, maxy[c]-miny[c]+1) == area[c]) {
+			// nothing else white in the box, so every white pixel in it is this blob's
+			top[c] = whites.sum(minx[c], miny[c], split1[c]-minx[c]+1, rows);
+			mid[c] = whites.sum(split1[c], miny[c], split2[c]-split1[c]+1, rows);
+			bottom[c] = whites.sum(split2[c], miny[c], maxx[c]-split2[c]+1, rows);
+			return;
+		}
+		for (int y=miny[c]; y<maxy[c]; y++) {
+			int p = minx[c] + y*width;
+			for (int x=minx[c]; x<=maxx[c]; x++) {
+				if (labels[p++] != c) continue;
+				if (x <= split1[c]) { top[c]++; }
+				if (x >= split1[c] && x <= split2[c]) { mid[c]++; }
+				if (x >= split2[c]) { bottom[c]++; }
+			}
+		}
+	}
+
+	/** @return number of components in the last labeled frame */
+	public int getCount() { return count; }
+
+	/** @return the last thresholded frame, bit p set if pixel p is white */
+	public long[] getMask() { return mask; }
+
+	/** @return component id for every pixel of the last labeled frame, row stride is the frame width */
+	public int[] getLabels() { return labels; }
+
+	/** @return component id at pixel p */
+	public int labelAt(int p) { return labels[p]; }
+
+	/** @return true if pixel p lies within the frame and belongs to component c */
+	public boolean contains(int c, int p) {
+		return p >= 0 && p < width*height && labels[p] == c;
+	}
+
+	public boolean isWhite(int c) { return white[c]; }
+
+	public int getArea(int c) { return area[c]; }
+
+	public int getMinX(int c) { return minx[c]; }
+
+	public int getMaxX(int c) { return maxx[c]; }
+
+	public int getMinY(int c) { return miny[c]; }
+
+	public int getMaxY(int c) { return maxy[c]; }
+
+	public int getLeftThird(int c) { countThirds(c); return top[c]; }
+
+	public int getMiddleThird(int c) { countThirds(c); return mid[c]; }
+
+	public int getRightThird(int c) { countThirds(c); return bottom[c]; }
+
+	public float getCentroidX(int c) { return (float) sumx[c] / area[c]; }
+
+	public float getCentroidY(int c) { return (float) sumy[c] / area[c]; }
+
+	/** @return sum of greyscale values under component c */
+	public int getLuminance(int c) { return luminance[c]; }
+
+	/** @return index of the last pixel of component c in scan order, bottom right-most */
+	public int getLastPixel(int c) { return last[c]; }
+
+	/** 
+	 * Pixel counts of white component c in the left, middle and right thirds of its bounding 
+	 * box, bottom row excluded
+	 * 
+	 * @param thirds filled, at least 3 long
+	 * @return thirds
+	 */
+	public int[] getThirds(int c, int[] thirds) {
+		countThirds(c);
+		thirds[0] = top[c];
+		thirds[1] = mid[c];
+		thirds[2] = bottom[c];
+		return thirds;
+	}
+
+	/** 
+	 * @param rect filled with minx,maxx,miny,maxy,size of component c, at least 5 long
+	 * @return rect 
+	 */
+	public int[] getRect(int c, int[] rect) {
+		rect[0] = minx[c];
+		rect[1] = maxx[c];
+		rect[2] = miny[c];
+		rect[3] = maxy[c];
+		rect[4] = area[c];
+		return rect;
+	}
+}
@@ -0,0 +1,79 @@
+package oculus;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ * One frame grabbed from the grabber's camera stream: the JPEG bytes the flash grabber sent, plus
+ * what the robot was doing when it arrived. Frames are numbered in the order they arrive.
+ *
+ * The bytes live in a FrameRing slot and are shared by every consumer, not copied. Read
+ * getLength() bytes of getJpeg(), never modify them, and check isValid() after using them:
+ * once the ring wraps round, the slot holds a newer frame.
+ */
+public class Frame {
+
+	private final FrameRing.Slot slot;
+	private final byte[] jpeg;
+	private final int length;
+	private final long seq;
+	private final long timestamp;
+	private final String tilt;
+	private final boolean moving;
+	private final String dockstatus;
+
+	Frame(FrameRing.Slot slot, byte[] jpeg, int length, long seq, long timestamp,
+			String tilt, boolean moving, String dockstatus) {
+		this.slot = slot;
+		this.jpeg = jpeg;
+		this.length = length;
+		this.seq = seq;
+		this.timestamp = timestamp;
+		this.tilt = tilt;
+		this.moving = moving;
+		this.dockstatus = dockstatus;
+	}
+
+	/** @return the JPEG, first getLength() bytes, shared, do not modify */
+	public byte[] getJpeg() { return jpeg; }
+
+	public int getLength() { return length; }
+
+	/** @return arrival order number, starts at 1 */
+	public long getSeq() { return seq; }
+
+	/** @return capture time, System.currentTimeMillis() when it arrived */
+	public long getTimestamp() { return timestamp; }
+
+	/** @return camservopos when captured, or null */
+	public String getTilt() { return tilt; }
+
+	/** @return true if the motors were running when captured */
+	public boolean isMoving() { return moving; }
+
+	/** @return dockstatus when captured, or null */
+	public String getDockStatus() { return dockstatus; }
+
+	/** @return false once the ring has overwritten this frame's bytes */
+	public boolean isValid() { return slot.seq == seq; }
+
+	/** @return decoded image, or null if the ring overwrote the bytes while decoding */
+	public BufferedImage decode() throws IOException {
+		return decode(1, null);
+	}
+
+	/** 
+	 * @param subsample decode every nth pixel and row only, 1 for all
+	 * @param region window to decode, full size pixels, or null for whole frame
+	 * @return decoded image, or null if the ring overwrote the bytes while decoding 
+	 */
+	public BufferedImage decode(int subsample, Rectangle region) throws IOException {
+		BufferedImage img = FrameDecoder.decode(jpeg, length, subsample, region);
+		if (!isValid()) {
+			Util.debug("frame " + seq + " overwritten while decoding", this);
+			return null;
+		}
+		return img;
+	}
+}
@@ -0,0 +1,144 @@
+package oculus;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import developer.image.Luminance;
+
+/**
+ * Decoded forms of recent frames, so every vision consumer of the same frame shares one JPEG
+ * decode and one greyscale pass. Keyed by frame sequence number, least recently used
+ * entries go once there are more than CAPACITY.
+ *
+ * Each form is worked out the first time someone asks for it, reduced resolution previews
+ * decode the JPEG subsampled. The returned arrays are shared, treat them as read only.
+ */
+public class FrameCache {
+
+	public static final int CAPACITY = 4;
+
+	private static FrameCache singleton = new FrameCache();
+
+	private Map<Long, Entry> entries = new LinkedHashMap<Long, Entry>(CAPACITY*2, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, FrameCache.Entry> eldest) {
+			return size() > CAPACITY;
+		}
+	};
+
+	public static FrameCache getReference() {
+		return singleton;
+	}
+
+	private FrameCache() { }
+
+	/** @return cache entry for frame, made if need be */
+	public synchronized Entry get(Frame frame) {
+		Long key = Long.valueOf(frame.getSeq());
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			entry = new Entry(frame);
+			entries.put(key, entry);
+		}
+		return entry;
+	}
+
+	/** one frame, raw and decoded */
+	public static class Entry {
+
+		private final Frame frame;
+		private BufferedImage image = null;
+		private boolean decoded = false;
+		private int[] rgb = null;
+		private byte[] grey = null;
+		private int mean;
+		private Map<Integer, Grey> previews = new HashMap<Integer, Grey>(); // by subsampling
+
+		private Entry(Frame frame) {
+			this.frame = frame;
+		}
+
+		/** @return the raw JPEG frame */
+		public Frame getFrame() { return frame; }
+
+		/** @return decoded image, null if the frame was overwritten in the ring before it could be */
+		public synchronized BufferedImage image() throws IOException {
+			if (!decoded) {
+				image = frame.decode();
+				decoded = true;
+			}
+			return image;
+		}
+
+		public int getWidth() throws IOException {
+			return image() == null ? 0 : image.getWidth();
+		}
+
+		public int getHeight() throws IOException {
+			return image() == null ? 0 : image.getHeight();
+		}
+
+		/** @return packed RGB pixels, row stride is the width, or null if not decodable */
+		public synchronized int[] rgb() throws IOException {
+			if (rgb == null && image() != null) {
+				rgb = image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+			}
+			return rgb;
+		}
+
+		/** @return 8-bit greyscale pixels, or null if not decodable */
+		public synchronized byte[] grey() throws IOException {
+			if (grey == null && image() != null) {
+				grey = new byte[image.getWidth()*image.getHeight()];
+				mean = Luminance.convert(image, grey, null);
+			}
+			return grey;
+		}
+
+		/** @return mean grey level, light meter */
+		public synchronized int getMean() throws IOException {
+			grey();
+			return mean;
+		}
+
+		/**
+		 * Greyscale at reduced resolution, for checks that don't need every pixel. Decoded
+		 * straight from the JPEG with source subsampling, a fraction of the cost of the full decode
+		 *
+		 * @param subsample keep every nth pixel of every nth row
+		 * @return plane, or null if the frame was overwritten in the ring before it could be decoded
+		 */
+		public synchronized Grey preview(int subsample) throws IOException {
+			Integer key = Integer.valueOf(subsample);
+			if (previews.containsKey(key)) return previews.get(key);
+			Grey preview = null;
+			BufferedImage img = frame.decode(subsample, null);
+			if (img != null) {
+				byte[] pixels = new byte[img.getWidth()*img.getHeight()];
+				int avg = Luminance.convert(img, pixels, null);
+				preview = new Grey(pixels, img.getWidth(), img.getHeight(), avg);
+			}
+			previews.put(key, preview);
+			return preview;
+		}
+	}
+
+	/** a greyscale plane and its mean */
+	public static class Grey {
+		public final byte[] pixels;
+		public final int width;
+		public final int height;
+		public final int mean;
+
+		Grey(byte[] pixels, int width, int height, int mean) {
+			this.pixels = pixels;
+			this.width = width;
+			this.height = height;
+			this.mean = mean;
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package oculus;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+/**
+ * JPEG decoding for grabbed frames. Keeps one ImageReader per thread rather than looking one up
+ * through ImageIO.read every frame, and can skip work the caller doesn't need: source
+ * subsampling decodes every nth pixel of every nth row, a source region only the window asked for.
+ */
+public class FrameDecoder {
+
+	private static ThreadLocal<ImageReader> readers = new ThreadLocal<ImageReader>() {
+		@Override
+		protected ImageReader initialValue() {
+			Iterator<ImageReader> i = ImageIO.getImageReadersByFormatName("jpeg");
+			return i.hasNext() ? i.next() : null;
+		}
+	};
+
+	private FrameDecoder() { }
+
+	/**
+	 * @param jpeg image bytes, first length used
+	 * @param subsample 1 for every pixel, 2 for every other pixel and row, etc.
+	 * @param region x,y,width,height to decode, in full size pixels, or null for all
+	 * @return decoded image, (region size)/subsample
+	 */
+	public static BufferedImage decode(byte[] jpeg, int length, int subsample, Rectangle region) throws IOException {
+		ImageReader reader = readers.get();
+		ImageInputStream in = new MemoryCacheImageInputStream(new ByteArrayInputStream(jpeg, 0, length));
+		if (reader == null) {
+			// no jpeg plugin by name, let ImageIO find one
+			BufferedImage img = ImageIO.read(in);
+			in.close();
+			return img;
+		}
+		try {
+			reader.setInput(in, true, true);
+			ImageReadParam param = reader.getDefaultReadParam();
+			if (subsample > 1) { param.setSourceSubsampling(subsample, subsample, 0, 0); }
+			if (region != null) { param.setSourceRegion(region); }
+			return reader.read(0, param);
+		} finally {
+			reader.setInput(null);
+			in.close();
+		}
+	}
+}
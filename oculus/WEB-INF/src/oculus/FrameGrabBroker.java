@@ -0,0 +1,254 @@
+package oculus;
+
+import java.util.EnumMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.red5.io.amf3.ByteArray;
+import org.red5.server.api.IConnection;
+import org.red5.server.api.service.IServiceCapableConnection;
+
+/**
+ * Hands out frames from the grabber's camera stream. Replaces polling framegrabbusy.
+ *
+ * Callers get a Future for the next frame. Requests that arrive while a grab of the same size
+ * is in flight share it, a different size waits its turn (the grabber answers every size through
+ * the same frameGrabbed callback, so only one can be outstanding). A grab the grabber never
+ * answers fails with a TimeoutException after TIMEOUT ms, and the next one goes out.
+ *
+ * framegrabbusy is still set while a grab is outstanding, for anyone watching state.
+ */
+public class FrameGrabBroker {
+
+	/** grabber flash method per frame size */
+	public enum Size {
+		full("framegrab"), medium("framegrabMedium");
+
+		private final String method;
+		Size(String method) { this.method = method; }
+	};
+
+	/** ms to wait on the grabber, as the old polling loops did */
+	public static final long TIMEOUT = 10000;
+
+	private static FrameGrabBroker singleton = new FrameGrabBroker();
+
+	private State state = State.getReference();
+	private volatile IConnection grabber = null;
+	private FrameRing ring = new FrameRing();
+
+	// guarded by this
+	private FrameFuture inflight = null;
+	private Size inflightSize = null;
+	private ScheduledFuture<?> inflightTimeout = null;
+	private EnumMap<Size, FrameFuture> queued = new EnumMap<Size, FrameFuture>(Size.class);
+	private EnumMap<Size, Frame> last = new EnumMap<Size, Frame>(Size.class);
+
+	private ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "framegrab timeout");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	public static FrameGrabBroker getReference() {
+		return singleton;
+	}
+
+	private FrameGrabBroker() { }
+
+	/** grabber signed in, or null on disconnect, which fails anything waiting */
+	public void setGrabber(IConnection g) {
+		grabber = g;
+		if (g == null) { failAll(new IllegalStateException("grabber disconnected")); }
+	}
+
+	/** @return true if the grabber is publishing camera video to grab from */
+	public boolean streaming() {
+		String stream = state.get(State.values.stream);
+		return grabber instanceof IServiceCapableConnection && stream != null &&
+				(stream.equals("camera") || stream.equals("camandmic"));
+	}
+
+	/** @return most recent frame received, or null */
+	public Frame getLast() {
+		return ring.latest();
+	}
+
+	/** @return most recent frame grabbed at size, or null */
+	public synchronized Frame getLast(Size size) {
+		return last.get(size);
+	}
+
+	/** @return recent frames, by sequence number */
+	public FrameRing getRing() {
+		return ring;
+	}
+
+	/**
+	 * Ask for the next frame
+	 *
+	 * @return completes with the frame, or fails with IllegalStateException if the stream isn't
+	 * available, or TimeoutException if the grabber doesn't answer. Can't be cancelled, others may share it
+	 */
+	public synchronized Future<Frame> grab(Size size) {
+		if (!streaming()) {
+			FrameFuture failed = new FrameFuture();
+			failed.fail(new IllegalStateException("stream unavailable"));
+			return failed;
+		}
+		if (inflight != null) {
+			if (inflightSize == size) return inflight;
+			FrameFuture next = queued.get(size);
+			if (next == null) {
+				next = new FrameFuture();
+				queued.put(size, next);
+			}
+			return next;
+		}
+		FrameFuture future = new FrameFuture();
+		invoke(size, future);
+		return future;
+	}
+
+	/**
+	 * Grab and wait for the next frame. Every grab ends within TIMEOUT of going out, and a
+	 * queued one goes out when the one ahead of it ends, so this waits at most twice that
+	 *
+	 * @return the frame, or null if unavailable or timed out (logged)
+	 */
+	public Frame await(Size size) {
+		try {
+			return grab(size).get(2*TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (ExecutionException e) {
+			Util.debug("frame grab failed: " + e.getCause().getMessage(), this);
+		} catch (TimeoutException e) {
+			Util.log("frame grab never ended", this);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return null;
+	}
+
+	/** 
+	 * send the grab, caller holds the lock. The timeout is scheduled first, and a grab that 
+	 * can't be sent fails straight away, so inflight never stays set without one
+	 */
+	private void invoke(final Size size, final FrameFuture future) {
+		inflight = future;
+		inflightSize = size;
+		state.set(State.values.framegrabbusy, true);
+		inflightTimeout = timer.schedule(new Runnable() {
+			public void run() {
+				synchronized (FrameGrabBroker.this) {
+					if (inflight != future) return;
+					inflight = null;
+					state.set(State.values.framegrabbusy, false);
+					future.fail(new TimeoutException("no frame from grabber in " + TIMEOUT + " ms"));
+					next();
+				}
+			}
+		}, TIMEOUT, TimeUnit.MILLISECONDS);
+		
+		try {
+			((IServiceCapableConnection) grabber).invoke(size.method, new Object[] {});
+		} catch (RuntimeException e) { // grabber gone, or going
+			inflight = null;
+			inflightTimeout.cancel(false);
+			state.set(State.values.framegrabbusy, false);
+			future.fail(e);
+			next();
+		}
+	}
+
+	/** send a queued grab, if any, caller holds the lock */
+	private void next() {
+		for (Size size : Size.values()) {
+			FrameFuture future = queued.remove(size);
+			if (future == null) continue;
+			if (streaming()) { invoke(size, future); }
+			else { future.fail(new IllegalStateException("stream unavailable")); }
+			return;
+		}
+	}
+
+	/** 
+	 * from Application.frameGrabbed, stores the frame in the ring with a snapshot of what the
+	 * robot was doing, and completes everyone waiting on the grab in flight 
+	 */
+	public void completed(ByteArray raw, int length) {
+		FrameFuture done;
+		Frame frame;
+		synchronized (this) {
+			frame = ring.write(raw, length, state.get(State.values.camservopos),
+					state.getBoolean(State.values.moving), state.get(State.values.dockstatus));
+			done = inflight;
+			if (done != null) { last.put(inflightSize, frame); }
+			inflight = null;
+			if (inflightTimeout != null) { inflightTimeout.cancel(false); }
+			state.set(State.values.framegrabbusy, false);
+			next();
+		}
+		if (done != null) { done.complete(frame); }
+	}
+
+	private synchronized void failAll(Exception e) {
+		if (inflight != null) {
+			inflight.fail(e);
+			inflight = null;
+			if (inflightTimeout != null) { inflightTimeout.cancel(false); }
+			state.set(State.values.framegrabbusy, false);
+		}
+		for (FrameFuture future : queued.values()) { future.fail(e); }
+		queued.clear();
+	}
+
+	/** completed once, by the broker */
+	private static class FrameFuture implements Future<Frame> {
+
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile Frame frame;
+		private volatile Throwable error;
+
+		synchronized void complete(Frame f) {
+			if (done.getCount() == 0) return;
+			frame = f;
+			done.countDown();
+		}
+
+		synchronized void fail(Throwable t) {
+			if (done.getCount() == 0) return;
+			error = t;
+			done.countDown();
+		}
+
+		public boolean cancel(boolean mayInterruptIfRunning) { return false; }
+
+		public boolean isCancelled() { return false; }
+
+		public boolean isDone() { return done.getCount() == 0; }
+
+		public Frame get() throws InterruptedException, ExecutionException {
+			done.await();
+			return result();
+		}
+
+		public Frame get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+			if (!done.await(timeout, unit)) throw new TimeoutException();
+			return result();
+		}
+
+		private Frame result() throws ExecutionException {
+			if (error != null) throw new ExecutionException(error);
+			return frame;
+		}
+	}
+}
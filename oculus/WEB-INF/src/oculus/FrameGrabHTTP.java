@@ -1,18 +1,9 @@
 package oculus;
 
-import java.awt.Color;
-import java.awt.Graphics2D;
-import java.awt.geom.Ellipse2D;
-import java.awt.geom.Rectangle2D;
-import java.awt.image.BufferedImage;
-import java.awt.image.WritableRaster;
 //import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
 //import java.util.Random;
 //import java.util.Timer;
 //import java.util.TimerTask;
@@ -29,10 +20,7 @@ public class FrameGrabHTTP extends HttpServlet {
 	
 	private static Application app = null;
 //	public static byte[] img  = null;
-	private State state = State.getReference();
 	
-	private static int var;
-	private static BufferedImage radarImage = null;
 //	private static boolean radarImageGenerating = false;
 	private static Settings settings = Settings.getReference();
 	
@@ -42,7 +30,6 @@ public class FrameGrabHTTP extends HttpServlet {
 	public static void setApp(Application a) {
 		if(app != null) return;
 		app = a;
-		var = 0;
 	}
 	
 	public void doGet(HttpServletRequest req, HttpServletResponse res) throws ServletException, IOException {
@@ -62,40 +49,83 @@ public class FrameGrabHTTP extends HttpServlet {
 //            }
         	
             if(mode.equals("processedImg")) { processedImg(req,res); }
+            
+            if(mode.equals("mjpeg")) { mjpeg(req,res); }
+            
+            if(mode.equals("timelapse")) { timeLapse(req,res); }
         }
 		else { frameGrab(req,res); }
         
 	}
 	
+	/** a new full size frame, or the last one if no older than the maxage param (ms) */
 	private void frameGrab(HttpServletRequest req, HttpServletResponse res) throws ServletException, IOException {
+		FrameGrabBroker broker = FrameGrabBroker.getReference();
+		Frame frame = FrameResponse.fresh(broker.getLast(FrameGrabBroker.Size.full), FrameResponse.maxAge(req));
+		if (frame == null) { frame = broker.await(FrameGrabBroker.Size.full); }
+		FrameResponse.send(req, res, frame);
+	}
+	
+	/** live video, multipart jpegs at up to fps frames per second, until the client disconnects */
+	private void mjpeg(HttpServletRequest req, HttpServletResponse res) throws ServletException, IOException {
+		int fps = MjpegStream.DEFAULT_FPS;
+		try {
+			if (req.getParameter("fps") != null) { fps = Integer.parseInt(req.getParameter("fps")); }
+		} catch (NumberFormatException e) { }
 		
-		res.setContentType("image/jpeg");
-		OutputStream out = res.getOutputStream();
-
-		Application.framegrabimg = null;
-		if (app.frameGrab()) {
-			
-			int n = 0;
-			while (state.getBoolean(State.values.framegrabbusy)) {
-//				while (img == null) {
-				try {
-					Thread.sleep(5);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				} 
-				n++;
-				if (n> 2000) {  // give up after 10 seconds 
-					state.set(State.values.framegrabbusy, false);
-					break;
+		res.setContentType("multipart/x-mixed-replace; boundary=" + MjpegStream.BOUNDARY);
+		res.setHeader("Cache-Control", "no-cache");
+		MjpegStream.getReference().serve(res.getOutputStream(), fps);
+	}
+	
+	/**
+	 * Time lapse recordings. time=[ms]: the frame recorded at or before then. from=[ms]&to=[ms]:
+	 * frames recorded in that range, multipart like mjpeg, played back at fps (default 5), to
+	 * defaults to now. Neither: text list of segments, one per line: start end frames bytes
+	 */
+	private void timeLapse(HttpServletRequest req, HttpServletResponse res) throws ServletException, IOException {
+		TimeLapse timelapse = TimeLapse.getReference();
+		try {
+			if (req.getParameter("time") != null) {
+				TimeLapse.Record record = timelapse.find(Long.parseLong(req.getParameter("time")));
+				if (record == null) {
+					res.sendError(HttpServletResponse.SC_NOT_FOUND, "nothing recorded by then");
+					return;
 				}
+				byte[] jpeg = timelapse.read(record, null);
+				FrameResponse.send(req, res, jpeg, record.length, "\"tl-" + record.getId() + "\"", record.timestamp);
 			}
-			
-			if (Application.framegrabimg != null) {
-				for (int i=0; i<Application.framegrabimg.length; i++) {
-					out.write(Application.framegrabimg[i]);
+			else if (req.getParameter("from") != null) {
+				long from = Long.parseLong(req.getParameter("from"));
+				long to = System.currentTimeMillis();
+				if (req.getParameter("to") != null) { to = Long.parseLong(req.getParameter("to")); }
+				int fps = MjpegStream.DEFAULT_FPS;
+				if (req.getParameter("fps") != null) { fps = Integer.parseInt(req.getParameter("fps")); }
+				fps = Math.max(1, Math.min(MjpegStream.MAX_FPS, fps));
+
+				res.setContentType("multipart/x-mixed-replace; boundary=" + MjpegStream.BOUNDARY);
+				res.setHeader("Cache-Control", "no-cache");
+				OutputStream out = res.getOutputStream();
+				byte[] buffer = null;
+				for (TimeLapse.Record record : timelapse.range(from, to)) {
+					long start = System.currentTimeMillis();
+					buffer = timelapse.read(record, buffer);
+					MjpegStream.writePart(out, buffer, record.length);
+					long wait = 1000/fps - (System.currentTimeMillis() - start);
+					if (wait > 0) { Thread.sleep(wait); }
 				}
+				out.close();
+			}
+			else {
+				res.setContentType("text/plain");
+				OutputStream out = res.getOutputStream();
+				out.write(timelapse.list().getBytes());
+				out.close();
 			}
-		    out.close();
+		} catch (NumberFormatException e) {
+			res.sendError(HttpServletResponse.SC_BAD_REQUEST, "times are ms since epoch");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		}
 	}
 	
@@ -110,12 +140,15 @@ public class FrameGrabHTTP extends HttpServlet {
 	private void radarGrab(HttpServletRequest req, HttpServletResponse res) 
 		throws ServletException, IOException {
 
-		generateRadarImage();
+		byte[] gif = RadarRenderer.getReference().gif(app.openNIRead);
 		
 		// send image
 		res.setContentType("image/gif");
+		res.setHeader("Cache-Control", "no-cache");
+		res.setContentLength(gif.length);
 		OutputStream out = res.getOutputStream();
-		ImageIO.write(radarImage, "GIF", out);
+		out.write(gif);
+		out.close();
 	}
 	
 	
@@ -150,115 +183,30 @@ public class FrameGrabHTTP extends HttpServlet {
 		*/
 		
 	
-	private void generateRadarImage() {
-//		radarImageGenerating = true;
-//		new Thread(new Runnable() { public void run() {
-
-			int w = 240;
-			int h = 320;
-			BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
-	
-			int voff = 0;
-			double angle = 0.392699082; // 22.5 deg in radians from ctr, or half included view angle
-			Graphics2D g2d = image.createGraphics();
-			
-			//render background
-			g2d.setColor(new Color(10,10,10));  
-			g2d.fill(new Rectangle2D.Double(0, 0, w, h));
-			
-			// too close out of range background fill
-			g2d.setColor(new Color(23,25,0)); 
-			int r = 40;
-			g2d.fill(new Ellipse2D.Double( w/2-r, h-1-r*0.95+voff, r*2, r*2*0.95));
-			
-			// retrieve & render pixel data and shadows
-			int maxDepthInMM = 3500;
-			if (app.openNIRead.depthCamGenerating == true) { 	
-				WritableRaster raster = image.getRaster();
-				int[] xdepth = app.openNIRead.readHorizDepth(120); 
-				/* TODO: need to figure out some way to drop request if taking too long
-				 * above line hangs whole servlet?
-				 */
-				int[] dataRGB = {0,255,0}; // sensor data pixel colour
-				g2d.setColor(new Color(0,70,0)); // shadow colour
-				int xdctr = xdepth.length/2;
-				for (int xd=0; xd < xdepth.length; xd++) {
-					int y = (int) ((float)xdepth[xd]/(float)maxDepthInMM*(float)h);
-					// x(opposite) = tan(angle)*y(adjacent)
-					double xdratio = (double)(xd - xdctr)/ (double) xdctr;
-		//			Util.log(Double.toString(xdratio),this);
-					int x = (w/2) - ((int) (Math.tan(angle)*(double) y * xdratio));
-					int xend = (w/2) - ((int) (Math.tan(angle)*(double) (h-1) * xdratio)); // for shadow fill past point
-					if (y<h-voff && y>0+voff && x>=0 && x<w) {
-						y = h-y-1+voff; //flip vertically
-						g2d.drawLine(x, y, xend, 0);  //fill area behind with line
-						raster.setPixel(x,y,dataRGB);
-						raster.setPixel(x,y+1,dataRGB);
-					}
-				}
-			}
-			else {
-				// pulsator
-				g2d.setColor(new Color(0,0,155));
-				var += 11;
-				if (var > h + 50) { var = 0; }
-				g2d.draw(new Ellipse2D.Double( w/2-var, h-1-var*0.95+voff, var*2, var*2*0.95));		
-			}
-			
-			
-			// dist scale arcs
-			g2d.setColor(new Color(100,100,100));
-			r = 100;
-			g2d.draw(new Ellipse2D.Double( w/2-r, h-1-r*0.95+voff, r*2, r*2*0.95));
-			r = 200;
-			g2d.draw(new Ellipse2D.Double( w/2-r, h-1-r*0.95+voff, r*2, r*2*0.95));
-			r = 300;
-			g2d.draw(new Ellipse2D.Double( w/2-r, h-1-r*0.95+voff, r*2, r*2*0.95));	
-			
-			// outside cone colour fill
-			g2d.setColor(new Color(23,25,0)); 
-			for (int y= 0-voff; y<h+voff; y++) {
-				int x = (int) (Math.tan(angle)*(double)(h-y-1));
-				if (x>=0) {
-					g2d.drawLine(0, y, (w/2)-x, y);  
-					g2d.drawLine(w-1, y, (w/2)+x,y);
-				}
-	  
-			}
-			
-			// cone perim lines
-			g2d.setColor(new Color(100,100,100));
-			int x = (int) (Math.tan(angle)*(double)(319));
-			g2d.drawLine(w/2, 319, (w/2)-x, 0);
-			g2d.drawLine(w/2, 319, (w/2)+x, 0);
-			
-			// radarImage = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
-			radarImage = image;
-//			radarImageGenerating = false;
-//		} }).start();
-
-	}
-
+	/** grab str frames (1 if blank) and queue each for FrameWriter to save, as they arrive */
 	public static void saveToFile(final String str) {
 		
-		final String urlString = "http://127.0.0.1:" + settings.readRed5Setting("http.port") + "/oculus/frameGrabHTTP";
 		new Thread(new Runnable() {
 			@Override
 			public void run() {
 				try {			
 					int i = 1;
 					if (!str.equals("")) { i = Integer.parseInt(str); }
-					Downloader dl = new Downloader();
-					String sep = Settings.sep;
+					FrameGrabBroker broker = FrameGrabBroker.getReference();
+					FrameWriter writer = FrameWriter.getReference();
+					int retries = 3; // per frame, grabs lapped in the ring before it could be copied
 					for(; i > 0 ; i--) {
-						Util.debug(i + " framegrab save: " + urlString, this);
-						DateFormat dateFormat = new SimpleDateFormat("dd-MMM-yyyy_HH-mm-ss");
-						Calendar cal = Calendar.getInstance();
-						String datetime = dateFormat.format(cal.getTime());
-
-						dl.FileDownload(urlString, datetime + ".jpg", "webapps"+sep+"oculus"+sep+"framegrabs");
-//						Util.saveUrl("capture/" + System.currentTimeMillis() + ".jpg", urlString );
-						app.message("frame saved as: "+datetime+".jpg", null, null);
+						Frame frame = broker.await(FrameGrabBroker.Size.full);
+						if (frame == null) {
+							app.message("frame grab failed, " + i + " frames not saved", null, null);
+							break;
+						}
+						if (writer.save(frame)) { retries = 3; }
+						else if (retries-- > 0) { i++; } // grab another
+						else {
+							app.message("frames overwritten before they could be saved, " + i + " frames not saved", null, null);
+							break;
+						}
 					}
 				} catch (Exception e) {
 					Util.log("can't get image: " + e.getLocalizedMessage(), this);
@@ -0,0 +1,127 @@
+package oculus;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Sends one grabbed frame as an HTTP response, for FrameGrabHTTP and AuthGrab.
+ *
+ * The JPEG goes out in one write with its Content-Length. The ETag is the frame's sequence
+ * number, so a client that asks with If-None-Match for a frame it already has gets a 304.
+ * Clients can also pass maxage, in ms, to accept the last frame grabbed if it's that recent,
+ * rather than waiting on a new grab.
+ */
+public class FrameResponse {
+
+	/** tells sequence numbers apart from those handed out before a restart */
+	private static final String BOOT = Long.toString(System.currentTimeMillis(), 36);
+
+	/** per request thread, frames are copied out of the ring before sending */
+	private static ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[FrameRing.INITIAL_BYTES];
+		}
+	};
+
+	private FrameResponse() { }
+
+	/** @return quoted entity tag for frame */
+	public static String etag(Frame frame) {
+		return "\"" + BOOT + "-" + frame.getSeq() + "\"";
+	}
+
+	/** @return maxage request parameter, ms, 0 if missing or not a number */
+	public static long maxAge(HttpServletRequest req) {
+		String maxage = req.getParameter("maxage");
+		if (maxage == null) return 0;
+		try {
+			return Math.max(0, Long.parseLong(maxage));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/** @return frame, if it was captured no more than maxage ms ago and is still in the ring, else null */
+	public static Frame fresh(Frame frame, long maxage) {
+		if (frame == null || maxage <= 0 || !frame.isValid()) return null;
+		if (System.currentTimeMillis() - frame.getTimestamp() > maxage) return null;
+		return frame;
+	}
+
+	/**
+	 * Respond with frame, or 304 if the request's If-None-Match names it
+	 *
+	 * @param frame to send, null if none could be grabbed (503)
+	 */
+	public static void send(HttpServletRequest req, HttpServletResponse res, Frame frame) throws IOException {
+		if (frame == null) {
+			res.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "no frame available");
+			return;
+		}
+
+		if (notModified(req, res, etag(frame), frame.getTimestamp())) return;
+
+		// copy out first, the ring may reuse the slot while a slow client is reading
+		int length = frame.getLength();
+		byte[] buffer = buffers.get();
+		if (buffer.length < length) {
+			buffer = new byte[length];
+			buffers.set(buffer);
+		}
+		System.arraycopy(frame.getJpeg(), 0, buffer, 0, length);
+		if (!frame.isValid()) {
+			res.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "frame overwritten, try again");
+			return;
+		}
+
+		write(res, buffer, length);
+	}
+
+	/**
+	 * Respond with a JPEG from elsewhere (a recording, say), or 304 if the request's
+	 * If-None-Match names it
+	 *
+	 * @param etag quoted, unique to these bytes
+	 * @param modified capture time
+	 */
+	public static void send(HttpServletRequest req, HttpServletResponse res, byte[] jpeg, int length,
+			String etag, long modified) throws IOException {
+		if (notModified(req, res, etag, modified)) return;
+		write(res, jpeg, length);
+	}
+
+	/** set caching headers, @return true if a 304 was sent */
+	private static boolean notModified(HttpServletRequest req, HttpServletResponse res, String etag, long modified) {
+		res.setHeader("ETag", etag);
+		res.setHeader("Cache-Control", "private, no-cache");
+		res.setDateHeader("Last-Modified", modified);
+		if (matches(req.getHeader("If-None-Match"), etag)) {
+			res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return true;
+		}
+		return false;
+	}
+
+	private static void write(HttpServletResponse res, byte[] jpeg, int length) throws IOException {
+		res.setContentType("image/jpeg");
+		res.setContentLength(length);
+		OutputStream out = res.getOutputStream();
+		out.write(jpeg, 0, length);
+		out.close();
+	}
+
+	/** @return true if the If-None-Match header lists etag, or is * */
+	private static boolean matches(String header, String etag) {
+		if (header == null) return false;
+		for (String tag : header.split(",")) {
+			tag = tag.trim();
+			if (tag.startsWith("W/")) { tag = tag.substring(2); }
+			if (tag.equals(etag) || tag.equals("*")) return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,77 @@
+package oculus;
+
+import org.red5.io.amf3.ByteArray;
+
+/**
+ * The last CAPACITY frames grabbed, newest overwriting oldest.
+ *
+ * Each slot keeps its JPEG buffer for good, growing it only when a bigger frame arrives, so
+ * steady state grabbing copies straight from the grabber's ByteArray into a buffer it already has.
+ * Frames handed out are views onto a slot, not copies: a consumer slow enough to be lapped will
+ * find Frame.isValid() false once it's done, and should drop whatever it made from the bytes.
+ * The slot sequence number works as a seqlock, zeroed while the slot is being written.
+ *
+ * One writer (the broker, on frameGrabbed), any number of readers.
+ */
+public class FrameRing {
+
+	public static final int CAPACITY = 8;
+
+	/** starting slot buffer, a medium frame fits easily, full frames grow it once */
+	public static final int INITIAL_BYTES = 64*1024;
+
+	/** a slot, written in place */
+	static class Slot {
+		byte[] data = new byte[INITIAL_BYTES];
+		volatile long seq = 0; // 0 while empty or being written
+		volatile Frame frame = null;
+	}
+
+	private final Slot[] slots = new Slot[CAPACITY];
+	private long next = 1;
+	private volatile Frame latest = null;
+
+	public FrameRing() {
+		for (int i=0; i<CAPACITY; i++) { slots[i] = new Slot(); }
+	}
+
+	/**
+	 * Copy a frame from the grabber into the next slot
+	 *
+	 * @param raw JPEG bytes from the grabber, length bytes are read
+	 * @return the new frame, also the latest
+	 */
+	public synchronized Frame write(ByteArray raw, int length, String tilt, boolean moving, String dockstatus) {
+		long seq = next++;
+		Slot slot = slots[(int) (seq % CAPACITY)];
+		slot.seq = 0;
+		if (slot.data.length < length) { slot.data = new byte[length + length/4]; }
+		raw.readBytes(slot.data, 0, length);
+		Frame frame = new Frame(slot, slot.data, length, seq, System.currentTimeMillis(), tilt, moving, dockstatus);
+		slot.frame = frame;
+		slot.seq = seq;
+		latest = frame;
+		return frame;
+	}
+
+	/** @return newest frame, or null if none yet */
+	public Frame latest() {
+		return latest;
+	}
+
+	/** @return frame seq if it's still held, else null */
+	public Frame get(long seq) {
+		if (seq <= 0) return null;
+		Slot slot = slots[(int) (seq % CAPACITY)];
+		Frame frame = slot.frame;
+		if (frame == null || frame.getSeq() != seq || slot.seq != seq) return null;
+		return frame;
+	}
+
+	/** @return oldest sequence number still held, 0 if empty */
+	public long oldest() {
+		Frame newest = latest;
+		if (newest == null) return 0;
+		return Math.max(1, newest.getSeq() - CAPACITY + 1);
+	}
+}
@@ -0,0 +1,164 @@
+package oculus;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Saves frames to the framegrabs folder as JPG files, on its own thread.
+ *
+ * save() copies the frame out of the ring and queues it, so callers never wait on the disk. The
+ * writer takes whatever has queued up, up to BATCH frames at a time, writes each through a
+ * FileChannel from one reused direct buffer, then reports and applies retention once per batch:
+ * if the framegrabretain setting is above 0, only that many of the newest JPGs are kept.
+ */
+public class FrameWriter {
+
+	public static final String FOLDER = Settings.redhome + Settings.sep + "webapps" + Settings.sep 
+			+ "oculus" + Settings.sep + "framegrabs";
+
+	/** most frames written between reports and retention checks */
+	public static final int BATCH = 16;
+
+	private static FrameWriter singleton = new FrameWriter();
+	private static Application app = null;
+
+	private Settings settings = Settings.getReference();
+	private BlockingQueue<Job> queue = new LinkedBlockingQueue<Job>();
+
+	// writer thread only
+	private ByteBuffer buffer = ByteBuffer.allocateDirect(FrameRing.INITIAL_BYTES);
+	private DateFormat dateFormat = new SimpleDateFormat("dd-MMM-yyyy_HH-mm-ss");
+
+	/** a frame's bytes and capture time, copied out of the ring */
+	private static class Job {
+		final byte[] jpeg;
+		final long timestamp;
+
+		Job(byte[] jpeg, long timestamp) {
+			this.jpeg = jpeg;
+			this.timestamp = timestamp;
+		}
+	}
+
+	public static FrameWriter getReference() {
+		return singleton;
+	}
+
+	/** for reporting saved files to the player */
+	public static void setApp(Application a) {
+		if(app != null) return;
+		app = a;
+	}
+
+	private FrameWriter() {
+		Thread writer = new Thread(new Runnable() {
+			public void run() {
+				writeLoop();
+			}
+		}, "frame writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Queue a frame to be saved
+	 *
+	 * @return false if the ring overwrote the frame before it could be copied
+	 */
+	public boolean save(Frame frame) {
+		byte[] jpeg = Arrays.copyOf(frame.getJpeg(), frame.getLength());
+		if (!frame.isValid()) return false;
+		queue.add(new Job(jpeg, frame.getTimestamp()));
+		return true;
+	}
+
+	private void writeLoop() {
+		List<Job> batch = new ArrayList<Job>(BATCH);
+		while (true) {
+			try {
+				batch.add(queue.take());
+			} catch (InterruptedException e) {
+				return;
+			}
+			queue.drainTo(batch, BATCH - 1);
+
+			File folder = new File(FOLDER);
+			folder.mkdirs();
+			String last = null;
+			int saved = 0;
+			for (Job job : batch) {
+				try {
+					last = write(folder, job);
+					saved++;
+				} catch (IOException e) {
+					Util.log("can't save frame: " + e.getLocalizedMessage(), this);
+				}
+			}
+			batch.clear();
+
+			if (saved > 0) {
+				Util.debug(saved + " frames saved to " + FOLDER, this);
+				if (app != null) {
+					if (saved == 1) { app.message("frame saved as: " + last, null, null); }
+					else { app.message(saved + " frames saved, last as: " + last, null, null); }
+				}
+			}
+			retain(folder);
+		}
+	}
+
+	/** @return file name written */
+	private String write(File folder, Job job) throws IOException {
+		String base = dateFormat.format(new Date(job.timestamp));
+		File file = new File(folder, base + ".jpg");
+		for (int i = 2; file.exists(); i++) { file = new File(folder, base + "_" + i + ".jpg"); } // same second
+		
+		if (buffer.capacity() < job.jpeg.length) { buffer = ByteBuffer.allocateDirect(job.jpeg.length); }
+		buffer.clear();
+		buffer.put(job.jpeg);
+		buffer.flip();
+
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			FileChannel channel = out.getChannel();
+			while (buffer.hasRemaining()) { channel.write(buffer); }
+		} finally {
+			out.close();
+		}
+		return file.getName();
+	}
+
+	/** delete the oldest JPGs over the framegrabretain limit, if any */
+	private void retain(File folder) {
+		int keep = settings.getInteger(ManualSettings.framegrabretain);
+		if (keep <= 0) return;
+		File[] files = folder.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.toLowerCase().endsWith(".jpg");
+			}
+		});
+		if (files == null || files.length <= keep) return;
+		Arrays.sort(files, new Comparator<File>() {
+			public int compare(File a, File b) {
+				long diff = a.lastModified() - b.lastModified();
+				return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+			}
+		});
+		for (int i = 0; i < files.length - keep; i++) {
+			if (!files[i].delete()) { Util.log("can't delete old frame: " + files[i].getName(), this); }
+		}
+	}
+}
@@ -7,7 +7,7 @@ import oculus.commport.Discovery;
 /** place extensions to settings here */
 public enum ManualSettings {
 	
-	email_smtp_server, email_smtp_port, email_username, email_password, email_from_address, developer, debugenabled, commandport, stopdelay, vself, arduinoculus, oculed;
+	email_smtp_server, email_smtp_port, email_username, email_password, email_from_address, developer, debugenabled, commandport, stopdelay, vself, arduinoculus, oculed, docksearch, framegrabretain, timelapsehours;
 
 	/** get basic settings */
 	public static Properties createDeaults(){
@@ -24,6 +24,9 @@ public enum ManualSettings {
 		config.setProperty(email_password.name(), Settings.DISABLED);
 		config.setProperty(email_from_address.name(), Settings.DISABLED);
 		config.setProperty(commandport.name(), "4444"); // State.values.disabled.name());
+		config.setProperty(docksearch.name(), OculusImage.ThresholdSearch.histogram.name());
+		config.setProperty(framegrabretain.name(), "0"); // jpgs kept in framegrabs, 0 for all
+		config.setProperty(timelapsehours.name(), "72"); // time lapse segments kept, 0 for all
 		return config;
 	}
 	
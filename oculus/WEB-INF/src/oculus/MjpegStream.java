@@ -0,0 +1,159 @@
+package oculus;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Live MJPEG (multipart/x-mixed-replace) for any number of viewers, fed by one grab loop.
+ *
+ * The loop starts with the first viewer, grabs full frames through the broker as fast as the
+ * most demanding viewer asks for (MAX_FPS at most), and ends when the last viewer goes. Each
+ * viewer's own thread sends the newest frame at its own rate, skipping any it's too slow for.
+ */
+public class MjpegStream {
+
+	public static final String BOUNDARY = "oculusframe";
+	public static final int MAX_FPS = 15;
+	public static final int DEFAULT_FPS = 5;
+
+	/** ms a viewer waits for a frame before giving up on the stream */
+	public static final long FRAME_WAIT = FrameGrabBroker.TIMEOUT;
+
+	private static MjpegStream singleton = new MjpegStream();
+
+	private FrameGrabBroker broker = FrameGrabBroker.getReference();
+
+	// guarded by this
+	private List<Integer> viewers = new ArrayList<Integer>(); // requested fps of each
+	private boolean running = false;
+	private Frame current = null;
+
+	public static MjpegStream getReference() {
+		return singleton;
+	}
+
+	private MjpegStream() { }
+
+	/** @return number of viewers connected */
+	public synchronized int getViewers() {
+		return viewers.size();
+	}
+
+	/**
+	 * Stream to one viewer until it disconnects or the stream stops, on the caller's thread
+	 *
+	 * @param out response body, content type already set to multipart/x-mixed-replace
+	 * @param fps frames per second wanted, clamped to 1..MAX_FPS
+	 */
+	public void serve(OutputStream out, int fps) {
+		fps = Math.max(1, Math.min(MAX_FPS, fps));
+		Integer viewer = Integer.valueOf(fps);
+		join(viewer);
+		byte[] buffer = new byte[FrameRing.INITIAL_BYTES];
+		long seq = 0;
+		try {
+			while (true) {
+				long start = System.currentTimeMillis();
+				Frame frame = next(seq);
+				if (frame == null) break;
+				seq = frame.getSeq();
+
+				// copy out of the ring first, a slow viewer mustn't send half of a newer frame
+				int length = frame.getLength();
+				if (buffer.length < length) { buffer = new byte[length]; }
+				System.arraycopy(frame.getJpeg(), 0, buffer, 0, length);
+				if (!frame.isValid()) continue;
+
+				writePart(out, buffer, length);
+
+				long wait = 1000/fps - (System.currentTimeMillis() - start);
+				if (wait > 0) { Thread.sleep(wait); }
+			}
+		} catch (IOException e) {
+			// viewer went away
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			leave(viewer);
+			try { out.close(); } catch (IOException e) { }
+		}
+	}
+
+	/** send one JPEG as a part of a multipart/x-mixed-replace response, and flush */
+	public static void writePart(OutputStream out, byte[] jpeg, int length) throws IOException {
+		byte[] header = ("--" + BOUNDARY + "\r\nContent-Type: image/jpeg\r\nContent-Length: " + length + "\r\n\r\n").getBytes();
+		out.write(header);
+		out.write(jpeg, 0, length);
+		out.write('\r');
+		out.write('\n');
+		out.flush();
+	}
+
+	private synchronized void join(Integer viewer) {
+		viewers.add(viewer);
+		Util.debug("mjpeg viewer joined, " + viewers.size() + " watching", this);
+		if (running) return;
+		running = true;
+		new Thread(new Runnable() {
+			public void run() {
+				grabLoop();
+			}
+		}, "mjpeg grab").start();
+	}
+
+	private synchronized void leave(Integer viewer) {
+		viewers.remove(viewer);
+		Util.debug("mjpeg viewer left, " + viewers.size() + " watching", this);
+	}
+
+	/** @return the newest frame after seq, waiting for one if need be, null if none comes */
+	private synchronized Frame next(long seq) throws InterruptedException {
+		long until = System.currentTimeMillis() + FRAME_WAIT;
+		while ((current == null || current.getSeq() <= seq) && running) {
+			long wait = until - System.currentTimeMillis();
+			if (wait <= 0) return null;
+			wait(wait);
+		}
+		if (current == null || current.getSeq() <= seq) return null;
+		return current;
+	}
+
+	/** grab at the fastest rate any viewer wants, until there are none */
+	private void grabLoop() {
+		Util.debug("mjpeg grab loop started", this);
+		try {
+			while (true) {
+				int fps;
+				synchronized (this) {
+					if (viewers.isEmpty()) {
+						running = false;
+						current = null;
+						notifyAll();
+						break;
+					}
+					fps = 1;
+					for (Integer v : viewers) { fps = Math.max(fps, v); }
+				}
+
+				long start = System.currentTimeMillis();
+				Frame frame = broker.await(FrameGrabBroker.Size.full);
+				synchronized (this) {
+					if (frame != null) {
+						current = frame;
+						notifyAll();
+					}
+				}
+				long wait = (frame == null ? 1000 : 1000/fps) - (System.currentTimeMillis() - start);
+				if (wait > 0) { Thread.sleep(wait); }
+			}
+		} catch (InterruptedException e) {
+			synchronized (this) {
+				running = false;
+				notifyAll();
+			}
+		}
+		Util.debug("mjpeg grab loop stopped", this);
+	}
+}
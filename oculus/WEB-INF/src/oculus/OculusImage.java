@@ -1,12 +1,25 @@
 package oculus;
 
 import java.awt.image.BufferedImage;
-import java.util.ArrayList;
-import java.util.Arrays;
+import java.awt.image.DataBufferInt;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReference;
+
+import developer.image.Luminance;
 
 public class OculusImage {	
 	
-	private int[] parr; // working pixels, whole image, 8-bit greyscale OR 1 bit B&W
+	/** how findBlobs walks thresholds looking for the dock target */
+	public enum ThresholdSearch { linear, histogram, parallel };
+	
+	/** candidate thresholds tried per frame, same cap as the linear walk */
+	public static final int MAX_ATTEMPTS = 15;
+	
+	// working buffers are kept between frames and only grow, steady state autodock allocates ~nothing
+	private byte[] grey = new byte[0]; // working pixels, whole image or window, 8-bit greyscale
+	private int[] histogram = new int[256]; // of grey, filled by convertToGrey
+	public ThresholdSearch search = ThresholdSearch.histogram;
 	private int width;
 	private int height;
 	public int lastThreshhold = -1;
@@ -15,8 +28,21 @@ public class OculusImage {
 	private float lastTopRatio;
 	private float lastBottomRatio;
 	private float lastMidRatio;
-	private int[] parrorig;
 	private int imgaverage;
+	private BlobLabeler labeler = new BlobLabeler();
+	private int[] candidates = new int[MAX_ATTEMPTS]; // ranked thresholds for the current frame
+	private int[] smooth = new int[256]; // histogram smoothing and valley ranking scratch
+	private int[] valleys = new int[256];
+	private float[] scores = new float[256];
+	
+	/** shared by all instances, parallel search evaluates one threshold per core */
+	private static ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+	
+	/** scratch labeling buffers for each pool thread, the grey frame itself is shared read-only */
+	private static final ThreadLocal<BlobLabeler> labelers = new ThreadLocal<BlobLabeler>() {
+		@Override
+		protected BlobLabeler initialValue() { return new BlobLabeler(); }
+	};
 	
 	public OculusImage() { }
 	
@@ -28,165 +54,262 @@ public class OculusImage {
 		lastBottomRatio = Float.parseFloat(a[3]);
 	}
 	
-	private void convertToGrey(int[] pixelRGB) {
-		// uses 30-59-11 RGB weighting from: http://en.wikipedia.org/wiki/Grayscale#Converting_color_to_grayscale
-		int p; 
-		parr = new int[width*height];
-		int n = 0;
-		int runningttl = 0;			
-		for (int i=0; i < pixelRGB.length; i++) {
-			int  red   = (pixelRGB[i] & 0x00ff0000) >> 16;
-			int  green = (pixelRGB[i] & 0x0000ff00) >> 8;
-			int  blue  =  pixelRGB[i] & 0x000000ff;
-			p = (int) (red*0.3 + green*0.59 + blue*0.11) ;
-			parr[n]=p;
-			n++;
-			runningttl += p;
-		}
-		imgaverage = runningttl/n;
+	/** grey a w x h window at x0,y0 of a frame stride pixels wide, into the reused grey buffer */
+	private void convertToGrey(int[] pixelRGB, int stride, int x0, int y0, int w, int h) {
+		width = w;
+		height = h;
+		if (grey.length < w*h) { grey = new byte[w*h]; }
+		imgaverage = Luminance.convert(pixelRGB, x0+y0*stride, stride, w, h, grey, histogram);
 		threshholdMult = (float) (0.65 - 0.2 + (0.40*( imgaverage/255)));
 		
 	}
 	
-	private void sendToImage(int[] pixelRGB) { // dev tool
-		Util.debug("sendtoImage "+pixelRGB.length,this);
-		Application.processedImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-		for(int y=0; y<height; y++) {
-			for (int x=0; x<width; x++) {
-				int grey = pixelRGB[x + y*width];
-				if (grey==1) {grey=255;} // only if psuedo-boolean parr
-				int argb = (grey<<16) + (grey<<8) + grey;
-				Application.processedImage.setRGB(x, y, argb);
+	/** copy a w x h window at x0,y0 of a grey frame stride pixels wide into the reused grey buffer */
+	private void loadGrey(byte[] frame, int stride, int x0, int y0, int w, int h) {
+		width = w;
+		height = h;
+		if (grey.length < w*h) { grey = new byte[w*h]; }
+		java.util.Arrays.fill(histogram, 0);
+		long runningttl = 0;
+		for (int y=0; y<h; y++) {
+			System.arraycopy(frame, x0+(y0+y)*stride, grey, y*w, w);
+			for (int i=y*w; i<(y+1)*w; i++) {
+				int p = grey[i] & 0xff;
+				histogram[p]++;
+				runningttl += p;
 			}
 		}
+		imgaverage = (int) (runningttl/(w*h));
+		threshholdMult = (float) (0.65 - 0.2 + (0.40*( imgaverage/255)));
 	}
 	
-	private void sendToImage(Boolean[] pixelRGB) { // dev tool
-		Util.debug("sendtoImageBoolean "+pixelRGB.length,this);
-//		int fillsize =0; // debug log
-
-		Application.processedImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-		for(int y=0; y<height; y++) {
-			for (int x=0; x<width; x++) {
-				int p = x + y*width;
-//				Util.log("p: "+p, this);
-				int argb;
-				if (pixelRGB[p]==true) { argb = (255<<16) + (0<<8) + 0; } // fillsize ++; } // red
-				else {  
-					int grey = parrorig[p]; 
-					argb = (grey<<16) + (grey<<8) + grey; 
-				}
-				Application.processedImage.setRGB(x, y, argb);
-
-			}
+	/** load a window from whichever frame format was given, packed RGB or grey */
+	private void load(int[] bar, byte[] frame, int stride, int x0, int y0, int w, int h) {
+		if (frame != null) { loadGrey(frame, stride, x0, y0, w, h); }
+		else { convertToGrey(bar, stride, x0, y0, w, h); }
+	}
+	
+	/** @return pixels of Application.processedImage, re-used while the size holds */
+	private int[] processedPixels(int width, int height) { // dev tool
+		BufferedImage img = Application.processedImage;
+		if (img == null || img.getWidth() != width || img.getHeight() != height || img.getType() != BufferedImage.TYPE_INT_RGB) {
+			img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+			Application.processedImage = img;
 		}
-//		Util.debug("fillsize "+fillsize,this);
-
+		return ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
 	}
 	
-	private Boolean[] floodFill(int[] ablob, int start) {  
-		ArrayList<Integer> q= new ArrayList<Integer>();
-		q.add(start);
-		Boolean[] blob = new Boolean[width*height];
-		Arrays.fill(blob, false);
-		int n;
-		int w;
-		int e;
-		int i;
-		
-		while (q.size() > 0) {
-			n = q.remove(q.size()-1);
-			if (ablob[n]==1) {
-				w = n;
-				e = n;
-				while (ablob[w]==1) { w --; if(w<0 || w>=ablob.length) {break;} }
-				while (ablob[e]==1) { e ++; if(e<0 || e>=ablob.length) {break;}}
-				for (i=w+1; i<=e-1; i++) { 
-					ablob[i]=0; 
-					blob[i]=true;
-					if (i-width<ablob.length && i-width>0) {
-						if (ablob[i-width]==1) { q.add(i-width); }
-					}
-					if (i+width<ablob.length && i+width>0) {
-						if (ablob[i+width]==1) { q.add(i+width); }
-					}
-				}
+	private void sendToImage() { // dev tool
+		Util.debug("sendtoImage "+width*height,this);
+		int[] argb = processedPixels(width, height);
+		for (int p=0; p<width*height; p++) {
+			int g = grey[p] & 0xff;
+			argb[p] = (g<<16) + (g<<8) + g;
+		}
+	}
+	
+	private void sendToImage(Target target, BlobLabeler labeler, int blob) { // dev tool
+		Util.debug("sendtoImageBlob "+blob,this);
+		int[] argb = processedPixels(target.width, target.height);
+		int[] labels = labeler.getLabels();
+		for (int p=0; p<target.width*target.height; p++) {
+			if (labels[p]==blob) { argb[p] = (255<<16) + (0<<8) + 0; } // red
+			else {  
+				int g = target.grey[p] & 0xff; 
+				argb[p] = (g<<16) + (g<<8) + g; 
 			}
 		}
-
-		return blob;
 	}
 	
 	public String[] findBlobStart(int x, int y, int w, int h, int[] bar) { // calibrate only...
+		return findBlobStart(x, y, w, h, bar, null);
+	}
+	
+	/** calibrate from an already greyed (and smoothed) frame */
+	public String[] findBlobStart(int x, int y, int w, int h, byte[] frame) {
+		return findBlobStart(x, y, w, h, null, frame);
+	}
+	
+	private String[] findBlobStart(int x, int y, int w, int h, int[] bar, byte[] frame) {
 		lastThreshhold = 0;
 		String r[];
-		findBlobStartSub(x,y,w,h,bar);
-		r = findBlobStartSub(x,y,w,h,bar); // do it again, with contrast averaged
+		load(bar, frame, w, 0, 0, w, h);
+		findBlobStartSub(x,y);
+		r = findBlobStartSub(x,y); // do it again, with contrast averaged
 		return r;
 	}
 	
-	private String[] findBlobStartSub(int x, int y, int w, int h, int[] bar) { // calibrate sub
-		width = w;
-		height = h;
-		convertToGrey(bar); 
-		parrorig = parr.clone(); // save original image for re-threshholding after
+	private String[] findBlobStartSub(int x, int y) { // calibrate sub
 		int start = x + y*width; 
 		String[] result = new String[]{"0","0","0","0","0","0","0","0","0"};
 		
-		int startavg = (parr[start-1]+parr[start]+parr[start+1])/3; //includes 2 adjacent pixels in contract threshhold to counteract grainyness a bit
+		int startavg = ((grey[start-1]&0xff)+(grey[start]&0xff)+(grey[start+1]&0xff))/3; //includes 2 adjacent pixels in contract threshhold to counteract grainyness a bit
 		int threshhold = (int) (startavg*threshholdMult);
 		
 		if (lastThreshhold !=0) {
 			threshhold = lastThreshhold;
 		}
-		int i;
-		for (i=0;i<parr.length;i++){
-			if (parr[i]>threshhold) { parr[i]=1; } 
-			else { parr[i]=0; }
-		}
-		Boolean[] blob = floodFill(parr, start);
-		int blobSize =0;
-			int r[] = getRect(blob,start);
-			int minx = r[0];
-			int maxx = r[1];
-			int miny = r[2];
-			int maxy = r[3];  
-			blobSize = r[4];
-			int	blobBox = (maxx-minx)*(maxy-miny);
-			lastTopRatio = (float) getPixelEqTrueCount(blob, minx, (int) (minx+(maxx-minx)*0.333), miny, maxy) / (float) blobBox; // left
-			lastMidRatio = (float) getPixelEqTrueCount(blob, (int) (minx+(maxx-minx)*0.333), (int) (minx+(maxx-minx)*0.666), miny, maxy) / (float) blobBox;
-			lastBottomRatio = (float) getPixelEqTrueCount(blob, (int) (minx+(maxx-minx)*0.666), maxx, miny, maxy) / (float) blobBox; // left
-			lastBlobRatio = (float)(maxx-minx)/(float)(maxy-miny);
-			float slope =  getBottomSlope(blob,minx,maxx,miny,maxy)[0];
-			//result = x,y,width,height,slope,lastBlobRatio,lastTopRatio,lastMidRatio,lastBottomRatio
-			result = new String[]{Integer.toString(minx), Integer.toString(miny), Integer.toString(maxx-minx),
-					Integer.toString(maxy-miny), Float.toString(slope), Float.toString(lastBlobRatio),
-					Float.toString(lastTopRatio), Float.toString(lastMidRatio), Float.toString(lastBottomRatio)}; 
+		labeler.label(grey, width, height, threshhold);
+		int blob = labeler.labelAt(start);
+		int minx = labeler.getMinX(blob);
+		int maxx = labeler.getMaxX(blob);
+		int miny = labeler.getMinY(blob);
+		int maxy = labeler.getMaxY(blob);  
+		int blobSize = labeler.getArea(blob);
+		int	blobBox = (maxx-minx)*(maxy-miny);
+		lastTopRatio = (float) labeler.getLeftThird(blob) / (float) blobBox; // left
+		lastMidRatio = (float) labeler.getMiddleThird(blob) / (float) blobBox;
+		lastBottomRatio = (float) labeler.getRightThird(blob) / (float) blobBox; // left
+		lastBlobRatio = (float)(maxx-minx)/(float)(maxy-miny);
+		float slope =  getBottomSlope(labeler,width,blob,minx,maxx,miny,maxy)[0];
+		//result = x,y,width,height,slope,lastBlobRatio,lastTopRatio,lastMidRatio,lastBottomRatio
+		result = new String[]{Integer.toString(minx), Integer.toString(miny), Integer.toString(maxx-minx),
+				Integer.toString(maxy-miny), Float.toString(slope), Float.toString(lastBlobRatio),
+				Float.toString(lastTopRatio), Float.toString(lastMidRatio), Float.toString(lastBottomRatio)}; 
 
 		if (lastThreshhold==0) {
-			int runningttl = 0;
-			for (i=0; i<width*height; i++) { // zero to end
-				if (blob[i]) {
-					runningttl += parrorig[i];
+			lastThreshhold = (int) ((labeler.getLuminance(blob)/blobSize)*threshholdMult); // adaptive threshhold
+		}
+		return result;
+	}
+	
+	/**
+	 * Search a window of the frame first, falling back to the whole frame if the target
+	 * isn't found wholly inside it
+	 * 
+	 * @param window x,y,width,height predicted from the last find, or null for whole frame
+	 * @return x,y,width,height,slope in whole frame coordinates
+	 */
+	public String[] findBlobs(int[] bar, int w, int h, int[] window) {
+		return findBlobs(bar, null, w, h, window);
+	}
+	
+	/** as findBlobs(int[],int,int,int[]), from an already greyed (and smoothed) frame */
+	public String[] findBlobs(byte[] frame, int w, int h, int[] window) {
+		return findBlobs(null, frame, w, h, window);
+	}
+	
+	private String[] findBlobs(int[] bar, byte[] frame, int w, int h, int[] window) {
+		if (window != null) {
+			int wx = Math.max(0, window[0]);
+			int wy = Math.max(0, window[1]);
+			int ww = Math.min(w, window[0]+window[2]) - wx;
+			int wh = Math.min(h, window[1]+window[3]) - wy;
+			if (ww > 2 && wh > 2) {
+				int seed = lastThreshhold;
+				load(bar, frame, w, wx, wy, ww, wh);
+				String[] result = search();
+				int minx = Integer.parseInt(result[0]);
+				int miny = Integer.parseInt(result[1]);
+				int maxx = minx + Integer.parseInt(result[2]);
+				int maxy = miny + Integer.parseInt(result[3]);
+				// blob cut off by a window edge that isn't also a frame edge can't be trusted
+				boolean clipped = (minx == 0 && wx > 0) || (miny == 0 && wy > 0) ||
+						(maxx >= ww-1 && wx+ww < w) || (maxy >= wh-1 && wy+wh < h);
+				if (!result[2].equals("0") && !clipped) {
+					result[0] = Integer.toString(minx + wx);
+					result[1] = Integer.toString(miny + wy);
+					return result;
 				}
+				lastThreshhold = seed;
+				Util.debug("dock target not in window, searching whole frame", this);
 			}
-			lastThreshhold = (int) ((runningttl/blobSize)*threshholdMult); // adaptive threshhold
 		}
-		return result;
+		load(bar, frame, w, 0, 0, w, h);
+		return search();
 	}
 	
 	public String[] findBlobs(int[] bar, int w, int h) {
-		width = w;
-		height = h;
+		convertToGrey(bar, w, 0, 0, w, h);
+		return search();
+	}
+	
+	public String[] findBlobs(byte[] frame, int w, int h) {
+		loadGrey(frame, w, 0, 0, w, h);
+		return search();
+	}
+	
+	/** find the target in the current grey frame, walking thresholds per the search mode */
+	private String[] search() {
+		if (lastThreshhold == -1)  {lastThreshhold = imgaverage; } 
+		if (search == ThresholdSearch.linear) { return findBlobsLinear(); }
+		
+		// grey and histogram once per frame, then try the most promising thresholds first
+		int count = rankThreshholds(histogram, lastThreshhold);
+		Target target = new Target(this);
+		if (search == ThresholdSearch.parallel) { return findBlobsParallel(target, count); }
+		for (int i=0; i<count; i++) {
+			Match match = evaluate(labeler, target, candidates[i]);
+			if (match != null) { 
+				accept(target, match);
+				return match.result;
+			}
+		}
+		sendToImage(); // testing
+		return new String[]{"0","0","0","0","0"}; //x,y,width,height,slope
+	}
+	
+	/** 
+	 * Evaluate candidate thresholds concurrently on the pool, in ranked order. The first 
+	 * acceptable match wins and renders the processed image, tasks that start after it return
+	 * straight away. Waits for every task, so none is still reading the grey buffer when the 
+	 * next frame is loaded into it.
+	 */
+	private String[] findBlobsParallel(final Target target, int count) {
+		final AtomicReference<Match> found = new AtomicReference<Match>();
+		final CountDownLatch done = new CountDownLatch(count);
+		
+		for (int i=0; i<count; i++) {
+			final int threshhold = candidates[i];
+			pool.execute(new Runnable() {
+				public void run() {
+					try {
+						if (found.get() != null) return;
+						Match match = evaluate(labelers.get(), target, threshhold);
+						if (match != null && found.compareAndSet(null, match)) {
+							sendToImage(target, match.labeler, match.blob); // testing, before this thread's buffers get reused
+						}
+					} catch (Exception e) {
+						Util.log("parallel dock search failed at "+threshhold+": "+e, OculusImage.this);
+					} finally {
+						done.countDown();
+					}
+				}
+			});
+		}
+		
+		boolean interrupted = false;
+		while (true) {
+			try {
+				done.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true; // tasks still read the grey buffer, finish waiting
+			}
+		}
+		if (interrupted) { Thread.currentThread().interrupt(); }
+		
+		Match match = found.get();
+		if (match == null) {
+			sendToImage(); // testing
+			return new String[]{"0","0","0","0","0"}; //x,y,width,height,slope
+		}
+		lastThreshhold = match.threshhold;
+		return match.result;
+	}
+	
+	/** original search, steps threshold +/-10, +/-20... from the last one each attempt */
+	private String[] findBlobsLinear() {
 		int attemptnum = 0;
 		int dir = -1;
 		int inc = 10;
 		int n = inc;
 		int deleteddir = 0;
 		String[] result = new String[]{"0","0","0","0","0"}; //x,y,width,height,slope
+		Target target = new Target(this);
 
-		while (attemptnum < 15) { // was 15 
-			result = findBlobsSub(bar);
+		while (attemptnum < MAX_ATTEMPTS) { // was 15 
+			result = findBlobsSub(target);
 			if (result[2].equals("0")) {
 				if (deleteddir != 0) {
 					n = inc;
@@ -217,193 +340,227 @@ public class OculusImage {
 		return result;
 	}
 	
-	public String[] findBlobsSub(int[] bar) {
-		String[] result = new String[]{"0","0","0","0","0"}; //x,y,width,height,slope
-		convertToGrey(bar);
-		parrorig = parr.clone();
-
-		if (lastThreshhold == -1)  {lastThreshhold = imgaverage; } 
-		int threshhold = lastThreshhold;
-		
-		int i;
-		int[] parrinv = new int[width*height]; // inverse, used to check for inner black blob
-		for (i=0; i<parr.length; i++){ //convert to B&W
-			if (parr[i]>threshhold) { 
-				parr[i]=1;
-				parrinv[i]=0;
-			}
-			else { 
-				parr[i]=0;
-				parrinv[i]=1; 
-			}
+	/** one attempt on the current grey frame at lastThreshhold */
+	private String[] findBlobsSub(Target target) {
+		Match match = evaluate(labeler, target, lastThreshhold);
+		if (match == null) {
+			sendToImage(); // testing
+			return new String[]{"0","0","0","0","0"}; //x,y,width,height,slope
 		}
-		int blobnum = 0;
-		float maxdiff = 99.0f;
-		float diff;
-		float slope = -1;
-		int winner =-1;
-		int[] winRect = new int[]{0,0,0,0,0};
-		int minx = 0;
-		int miny = 0;
-		int maxx = 0;
-		int maxy = 0; 
-		float topRatio;
-		float bottomRatio;
-		float midRatio;
-		int blobSize;
-		int[] r;
-		int pixel;
-		ArrayList<Boolean[]> blobs = new ArrayList<Boolean[]>();
+		accept(target, match);
+		return match.result;
+	}
+	
+	/** a dock target found at one threshold */
+	private static class Match {
+		String[] result; // x,y,width,height,slope
+		int threshhold;  // adaptive threshhold for the next frame
+		BlobLabeler labeler;
+		int blob;
+	}
+	
+	/** 
+	 * The grey frame and the target it's matched against, fixed when a search starts so
+	 * evaluations on pool threads never see fields the next frame has changed
+	 */
+	private static class Target {
+		final byte[] grey;
+		final int width;
+		final int height;
+		final float blobRatio;
+		final float topRatio;
+		final float midRatio;
+		final float bottomRatio;
+		final float threshholdMult;
 		
-		int blobBox;
-		ArrayList<Integer> blobstarts = new ArrayList<Integer>();
-		for (pixel=0; pixel<width*height; pixel++) { // zero to end, find all blobs
-			if (parr[pixel]==1) { // finds a white one 
-					Boolean[] temp = floodFill(parr, pixel);
-					if (temp.length > 150) { // discard tiny blobs
-						blobs.add(temp);
-						blobstarts.add(pixel);
-					}
-					
-				}
-		}		
+		Target(OculusImage image) {
+			grey = image.grey;
+			width = image.width;
+			height = image.height;
+			blobRatio = image.lastBlobRatio;
+			topRatio = image.lastTopRatio;
+			midRatio = image.lastMidRatio;
+			bottomRatio = image.lastBottomRatio;
+			threshholdMult = image.threshholdMult;
+		}
+	}
+	
+	/** keep the adaptive threshhold of a match for the next frame */
+	private void accept(Target target, Match match) {
+		lastThreshhold = match.threshhold;
+		sendToImage(target, match.labeler, match.blob); // testing
+	}
+	
+	/**
+	 * Order thresholds to try on this frame, best first. The seed (last good threshold) leads,
+	 * then the Otsu split, then histogram valleys weighted by depth and closeness to the seed,
+	 * then the linear walk around the seed fills whatever attempts remain.
+	 * 
+	 * @return number of thresholds, in the reused candidates array
+	 */
+	private int rankThreshholds(int[] hist, int seed) {
+		int ranked = 0;
+		ranked = addThreshhold(ranked, seed);
+		ranked = addThreshhold(ranked, otsu(hist));
 		
-		ArrayList<Integer> rejectedBlobs = new ArrayList<Integer>();
-		while (rejectedBlobs.size() < blobs.size()) {
-			for (blobnum=0; blobnum<blobs.size(); blobnum++) { // go thru and eval each blob
-				if (rejectedBlobs.indexOf(blobnum) == -1) {
-					r = getRect(blobs.get(blobnum),blobstarts.get(blobnum)); 
-					blobSize = r[4];
-
-					minx = r[0];
-					maxx = r[1];
-					miny = r[2];
-					maxy = r[3];  
-					blobBox = (maxx-minx)*(maxy-miny);
-					topRatio =  (float) getPixelEqTrueCount(blobs.get(blobnum), minx, (int) (minx+(maxx-minx)*0.333), miny, maxy) / (float) blobBox; 
-					midRatio = (float) getPixelEqTrueCount(blobs.get(blobnum), (int) (minx+(maxx-minx)*0.333),
-							(int) (minx+(maxx-minx)*0.666), miny, maxy) / (float) blobBox;
-					bottomRatio = (float) getPixelEqTrueCount(blobs.get(blobnum), (int) (minx+(maxx-minx)*0.666), 
-							maxx, miny, maxy) / (float) blobBox;
-					float blobRatio = (float) (maxx-minx)/(float)(maxy-miny);
-					diff = Math.abs(topRatio - lastTopRatio) + Math.abs(bottomRatio- lastBottomRatio) + Math.abs(midRatio- lastMidRatio);
-					if (diff < maxdiff && blobRatio <= lastBlobRatio*1.1) { 
-						winner=blobnum;
-						maxdiff = diff;
-						winRect = r.clone();
-					}
-
-				}
-			}
-			if (winner == -1) { break; }
-			else { // best looking blob chosen, now check if it has ctr blob AND bottom slope extents wider than rest 
-				minx = winRect[0];
-				maxx = winRect[1];
-				miny = winRect[2];
-				maxy = winRect[3];
-				int ctrx = minx+((maxx-minx)/2);
-				int ctry = miny+((maxy-miny)/2);
-				i = ctrx + ctry*width;  // dead center of winner blob
-				if (parrinv[i]==1) { // if ctr blob start exists
-					Boolean[] ctrblob = floodFill(parrinv,i);
-					r = getRect(ctrblob,i);
-					if (minx<r[0] && maxx>r[1] && miny<r[2] && maxy>r[3] && r[4] > 10 && r[4]<winRect[4]*0.5 && r[4]>winRect[4]*0.2 ) { // ctrblob completely within blob
-						float[] sl = getBottomSlope(blobs.get(winner),minx,maxx,miny,maxy);
-						slope = sl[0];
-						if (sl[1]<=minx || sl[2]>=maxx) { // bottom slope is widest on at least one side
-							break;
-						} // else { Util.debug("failed slope test",this); sendToImage(blobs.get(winner));  }
-					}
-				}
-
-				rejectedBlobs.add(winner);
-				winner = -1;
-			
-				
-			}
+		// smooth with 7 bin window, valley = local minimum
+		for (int i=0; i<256; i++) {
+			smooth[i] = 0;
+			for (int j=Math.max(0, i-3); j<=Math.min(255, i+3); j++) { smooth[i] += hist[j]; }
 		}
-
-		if (winner != -1) {
-
-			result = new String[]{Integer.toString(minx),Integer.toString(miny),Integer.toString(maxx-minx),
-					Integer.toString(maxy-miny),Float.toString(slope)}; //x,y,width,height,slope
-	
-			blobSize = winRect[4];		
-			int runningttl = 0;
-			for (pixel=0; pixel<width*height; pixel++) { // zero to end
-				if (blobs.get(winner)[pixel]) {
-					runningttl += parrorig[pixel];
+		int found = 0; // valleys, deepest (by score) first
+		for (int i=1; i<255; i++) {
+			if (smooth[i] < smooth[i-1] && smooth[i] <= smooth[i+1]) {
+				int left = 0;
+				int right = 0;
+				for (int j=Math.max(0, i-40); j<i; j++) { left = Math.max(left, smooth[j]); }
+				for (int j=i+1; j<=Math.min(255, i+40); j++) { right = Math.max(right, smooth[j]); }
+				float depth = Math.min(left, right) - smooth[i];
+				if (depth <= 0) continue;
+				float score = depth / (1f + Math.abs(i - seed)/32f);
+				int k = found;
+				while (k > 0 && scores[k-1] < score) { 
+					valleys[k] = valleys[k-1];
+					scores[k] = scores[k-1];
+					k--; 
 				}
+				valleys[k] = i;
+				scores[k] = score;
+				found++;
 			}
-			lastThreshhold = (int) ((runningttl/blobSize)*threshholdMult); // adaptive threshhold
-			
-			sendToImage(blobs.get(winner)); // testing
 		}
-		else { sendToImage(parrorig); } // testing
-		return result;
+		for (int i=0; i<found && ranked < MAX_ATTEMPTS/2; i++) { 
+			ranked = addThreshhold(ranked, valleys[i]); 
+		}
+		
+		// same +10, -10, +20, -20 steps the linear search takes
+		for (int n=10; ranked < MAX_ATTEMPTS && n < 256; n+=10) {
+			if (seed+n <= 255) { ranked = addThreshhold(ranked, seed+n); }
+			if (seed-n >= 0 && ranked < MAX_ATTEMPTS) { ranked = addThreshhold(ranked, seed-n); }
+		}
+		return ranked;
 	}
 	
-	private int[] getRect(Boolean[] blob, int start) {
-		int y = start/width;
-		int x = start - (y*width); 	
-		int minx = x;
-		int miny = y;
-		int maxx = x;
-		int maxy = y;
-		int p;
-		int tempy; 
-		int tempx;
-		int size = 0;
-		for (p=0; p<width*height; p++) {
-			if (blob[p]) {
-				tempy = p/width;
-				tempx = p - (tempy*width); 
-				if (tempx < minx) { minx = tempx; }
-				if (tempx > maxx) { maxx = tempx; }
-				if (tempy < miny) { miny = tempy; }
-				if (tempy > maxy) { maxy = tempy; }
-				size++;
-			}
+	/** 
+	 * add threshold to the first ranked candidates unless one within 3 levels is already queued
+	 * 
+	 * @return number of candidates now
+	 */
+	private int addThreshhold(int ranked, int t) {
+		if (t < 0 || t > 254) return ranked;
+		for (int i=0; i<ranked; i++) {
+			if (Math.abs(candidates[i] - t) < 4) return ranked;
 		}
-		int[] result = {minx,maxx,miny,maxy,size};
-		return result;
+		candidates[ranked] = t;
+		return ranked + 1;
 	}
 	
-	private int getPixelEqTrueCount(Boolean[] blob, int startx, int endx, int starty, int endy) {
-		int result = 0;
-		for (int yy = starty; yy<endy; yy++) {
-			for (int xx = startx; xx<=endx; xx++) {
-				if (blob[yy*width + xx]==true) {
-					result++;
-				}
+	/** @return Otsu threshold, maximizing between-class variance */
+	private int otsu(int[] hist) {
+		long total = 0;
+		long sum = 0;
+		for (int i=0; i<256; i++) { 
+			total += hist[i];
+			sum += (long) i * hist[i]; 
+		}
+		long sumb = 0;
+		long wb = 0;
+		double best = -1;
+		int threshold = 0;
+		for (int t=0; t<256; t++) {
+			wb += hist[t];
+			if (wb == 0) continue;
+			long wf = total - wb;
+			if (wf == 0) break;
+			sumb += (long) t * hist[t];
+			double mb = (double) sumb / wb;
+			double mf = (double) (sum - sumb) / wf;
+			double between = (double) wb * wf * (mb - mf) * (mb - mf);
+			if (between > best) {
+				best = between;
+				threshold = t;
 			}
 		}
-//		Util.debug("result: "+result, this);
-		return result;
+		return threshold;
 	}
 	
-	private float[] getBottomSlope(Boolean[] blob, int minx, int maxx, int miny, int maxy) {
-		int start = -1;
-		for (int i = maxx+maxy*width; i>=minx+miny*width; i-=1) {
-			if (blob[i]) {
-				start = i;
-				break;
+	/**
+	 * Look for the dock target in target's grey frame at one threshold
+	 * 
+	 * @return the match, or null if no blob passes
+	 */
+	private Match evaluate(BlobLabeler labeler, Target target, int threshhold) {
+		// one labeling pass finds all white blobs and their descriptors, 
+		// plus the black ones used for the ctr blob check
+		int width = target.width;
+		int components = labeler.label(target.grey, width, target.height, threshhold);
+		
+		// best looking blob, scored against the dock target from its descriptor only
+		float maxdiff = 99.0f;
+		int winner = -1;
+		for (int c=1; c<=components; c++) {
+			if (!labeler.isWhite(c)) continue;
+			int minx = labeler.getMinX(c);
+			int maxx = labeler.getMaxX(c);
+			int miny = labeler.getMinY(c);
+			int maxy = labeler.getMaxY(c);  
+			int blobBox = (maxx-minx)*(maxy-miny);
+			float topRatio =  (float) labeler.getLeftThird(c) / (float) blobBox; 
+			float midRatio = (float) labeler.getMiddleThird(c) / (float) blobBox;
+			float bottomRatio = (float) labeler.getRightThird(c) / (float) blobBox;
+			float blobRatio = (float) (maxx-minx)/(float)(maxy-miny);
+			float diff = Math.abs(topRatio - target.topRatio) + Math.abs(bottomRatio- target.bottomRatio) + Math.abs(midRatio- target.midRatio);
+			if (diff < maxdiff && blobRatio <= target.blobRatio*1.1) { 
+				winner = c;
+				maxdiff = diff;
 			}
 		}
+		if (winner == -1) { return null; }
+		
+		// best looking blob chosen, now check if it has ctr blob AND bottom slope extents wider than rest.
+		// no other blob scores below the winner, so if it fails there's no runner up to try 
+		int minx = labeler.getMinX(winner);
+		int maxx = labeler.getMaxX(winner);
+		int miny = labeler.getMinY(winner);
+		int maxy = labeler.getMaxY(winner);
+		int blobSize = labeler.getArea(winner);
+		int ctrx = minx+((maxx-minx)/2);
+		int ctry = miny+((maxy-miny)/2);
+		int ctrblob = labeler.labelAt(ctrx + ctry*width); // dead center of winner blob
+		if (labeler.isWhite(ctrblob)) { return null; } // no ctr blob
+		int ctrsize = labeler.getArea(ctrblob);
+		if (minx<labeler.getMinX(ctrblob) && maxx>labeler.getMaxX(ctrblob) && miny<labeler.getMinY(ctrblob) && maxy>labeler.getMaxY(ctrblob) 
+				&& ctrsize > 10 && ctrsize<blobSize*0.5 && ctrsize>blobSize*0.2 ) { // ctrblob completely within blob
+			float[] sl = getBottomSlope(labeler,width,winner,minx,maxx,miny,maxy);
+			if (sl[1]<=minx || sl[2]>=maxx) { // bottom slope is widest on at least one side
+				Match match = new Match();
+				match.result = new String[]{Integer.toString(minx),Integer.toString(miny),Integer.toString(maxx-minx),
+						Integer.toString(maxy-miny),Float.toString(sl[0])}; //x,y,width,height,slope
+				match.threshhold = (int) ((labeler.getLuminance(winner)/blobSize)*target.threshholdMult); // adaptive threshhold
+				match.labeler = labeler;
+				match.blob = winner;
+				return match;
+			}
+		}
+		return null;
+	}
+	
+	private float[] getBottomSlope(BlobLabeler labeler, int width, int blob, int minx, int maxx, int miny, int maxy) {
+		int start = labeler.getLastPixel(blob);
 		int starty = start/width;
 		int startx = start-(starty*width);
 		int direction = 1;
 		if (startx > minx+(maxx-minx)/2) { direction = -1; }
 		if (direction == -1) {
-			while (blob[start+1]) { start ++; }
+			while (labeler.contains(blob, start+1)) { start ++; }
 		}
 		else {
-			while (blob[start-1]) { start -= 1; }
+			while (labeler.contains(blob, start-1)) { start -= 1; }
 		}
 		int end = start;
-		while (blob[end + direction] || blob[end-width+direction]) { //crawl up diagonally or flat until hit vert wall
+		while (labeler.contains(blob, end + direction) || labeler.contains(blob, end-width+direction)) { //crawl up diagonally or flat until hit vert wall
 			end += direction;
-			if (!blob[end]) { end -= width; }
+			if (!labeler.contains(blob, end)) { end -= width; }
 		}
 		int endy = end/width;
 		int endx = end-(endy*width);
@@ -415,4 +572,4 @@ public class OculusImage {
 	}
 
 
-}
\ No newline at end of file
+}
@@ -22,7 +22,7 @@ public enum PlayerCommands {
     writesetting, holdservo, opennisensor, videosoundmode, pushtotalktoggle, restart, shutdown,
     setstreamactivitythreshold, getlightlevel, email, state, uptime, help, framegrabtofile, memory, who, 
     loginrecords, settings, analogwrite, digitalread, messageclients, dockgrabtest, rssadd, motiondetectgo,
-    motiondetectcancel;
+    motiondetectcancel, timelapse, observers, statehistory, statedump;
 	
 	/** get text for any player command */
 	public String getHelp(){
@@ -40,7 +40,8 @@ public enum PlayerCommands {
 		arduinoecho, arduinoreset, muterovmiconmovetoggle, reloadgrabber,
 	    writesetting, holdservo, opennisensor, videosoundmode, restart, shutdown,
 	    setstreamactivitythreshold, getlightlevel, email, state, uptime, help, framegrabtofile, memory, who, 
-	    loginrecords, settings, analogwrite, digitalread, messageclients, dockgrabtest, rssadd;	
+	    loginrecords, settings, analogwrite, digitalread, messageclients, dockgrabtest, rssadd, timelapse, observers, 
+	    statehistory, statedump;	
 	}
 	
 	// sub-set that are require parameters 
@@ -332,6 +333,10 @@ public enum PlayerCommands {
 		messageclients("Send text to all other connected users. Similar to chat, but without preceding user info"),
 		motiondetectgo("Starts motion detection routine with threshold, exits if detection occurs. Camera must be running"),
 		motiondetectcancel("Cancel motion detection routine"),
+		timelapse("Time lapse recording: 'start' [seconds between frames], 'stop', or no args for status"),
+		observers("Returns state observer queue depths, deliveries and dispatch latency"),
+		statehistory("Returns recent state changes: [key] [seconds], all keys and 60 s by default"),
+		statedump("Writes the state change journal to a binary file in the log folder"),
 		rssadd("Create new rss feed item with params: [title] description");
 
         private final String message;
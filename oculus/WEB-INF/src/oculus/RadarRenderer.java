@@ -0,0 +1,165 @@
+package oculus;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import developer.OpenNIRead;
+
+/**
+ * Top down radar view of one row of the depth camera, as a GIF, for mode=radar.
+ *
+ * Everything that doesn't depend on depth data is drawn once: the background under the data, and
+ * the range arcs and out of view cone fill over it, kept as a list of pixels to copy. Each new
+ * depth frame (or pulsator step, with the depth camera off) starts from a copy of the background,
+ * draws the data, lays the overlay pixels on top and encodes once. Requests for the same frame,
+ * from any number of viewers, get the same encoded bytes.
+ */
+public class RadarRenderer {
+
+	public static final int WIDTH = 240;
+	public static final int HEIGHT = 320;
+
+	/** depth camera row shown */
+	public static final int DEPTH_ROW = 120;
+	public static final int MAX_DEPTH_MM = 3500;
+
+	/** ms per pulsator step, about the client's radar refresh */
+	public static final long PULSE_MS = 250;
+
+	private static final double ANGLE = 0.392699082; // 22.5 deg in radians from ctr, or half included view angle
+	private static final int VOFF = 0;
+	private static final int DATA_RGB = 0x00ff00; // sensor data pixel colour
+	private static final Color SHADOW = new Color(0,70,0);
+	private static final Color PULSE = new Color(0,0,155);
+
+	private static RadarRenderer singleton = new RadarRenderer();
+
+	// guarded by this
+	private int[] background;
+	private int[] overlayIndex; // pixels drawn over the data, and their colours
+	private int[] overlayRGB;
+	private BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+	private int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+	private ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+	private boolean cachedDepth = false;
+	private long cachedKey = -1;
+	private byte[] gif = null;
+
+	public static RadarRenderer getReference() {
+		return singleton;
+	}
+
+	private RadarRenderer() {
+		renderStatic();
+	}
+
+	/**
+	 * @param openni depth camera
+	 * @return GIF of the current depth frame, shared, do not modify
+	 */
+	public synchronized byte[] gif(OpenNIRead openni) throws IOException {
+		boolean depth = openni.depthCamGenerating;
+		long key = depth ? openni.getFrameID() : System.currentTimeMillis()/PULSE_MS;
+		if (gif != null && depth == cachedDepth && key == cachedKey) return gif;
+
+		System.arraycopy(background, 0, pixels, 0, pixels.length);
+		Graphics2D g2d = image.createGraphics();
+		if (depth) { renderDepth(g2d, openni.readHorizDepth(DEPTH_ROW)); }
+		else { renderPulse(g2d, key); }
+		g2d.dispose();
+		for (int i=0; i<overlayIndex.length; i++) { pixels[overlayIndex[i]] = overlayRGB[i]; }
+
+		encoded.reset();
+		ImageIO.write(image, "GIF", encoded);
+		gif = encoded.toByteArray();
+		cachedDepth = depth;
+		cachedKey = key;
+		return gif;
+	}
+
+	/** points, with shadow lines filling the area behind each */
+	private void renderDepth(Graphics2D g2d, int[] xdepth) {
+		g2d.setColor(SHADOW);
+		int w = WIDTH, h = HEIGHT;
+		int xdctr = xdepth.length/2;
+		for (int xd=0; xd < xdepth.length; xd++) {
+			int y = (int) ((float)xdepth[xd]/(float)MAX_DEPTH_MM*(float)h);
+			// x(opposite) = tan(angle)*y(adjacent)
+			double xdratio = (double)(xd - xdctr)/ (double) xdctr;
+			int x = (w/2) - ((int) (Math.tan(ANGLE)*(double) y * xdratio));
+			int xend = (w/2) - ((int) (Math.tan(ANGLE)*(double) (h-1) * xdratio)); // for shadow fill past point
+			if (y<h-VOFF && y>0+VOFF && x>=0 && x<w) {
+				y = h-y-1+VOFF; //flip vertically
+				g2d.drawLine(x, y, xend, 0);  //fill area behind with line
+				pixels[x + y*w] = DATA_RGB;
+				pixels[x + (y+1)*w] = DATA_RGB;
+			}
+		}
+	}
+
+	/** expanding ring, while the depth camera is off */
+	private void renderPulse(Graphics2D g2d, long step) {
+		int h = HEIGHT;
+		int r = (int) (step % ((h + 50)/11 + 1)) * 11;
+		g2d.setColor(PULSE);
+		g2d.draw(new Ellipse2D.Double( WIDTH/2-r, h-1-r*0.95+VOFF, r*2, r*2*0.95));
+	}
+
+	/** draw the layers that never change, once */
+	private void renderStatic() {
+		int w = WIDTH, h = HEIGHT;
+
+		// under the data: background, too close out of range fill
+		BufferedImage under = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g2d = under.createGraphics();
+		g2d.setColor(new Color(10,10,10));
+		g2d.fill(new Rectangle2D.Double(0, 0, w, h));
+		g2d.setColor(new Color(23,25,0));
+		int r = 40;
+		g2d.fill(new Ellipse2D.Double( w/2-r, h-1-r*0.95+VOFF, r*2, r*2*0.95));
+		g2d.dispose();
+		background = ((DataBufferInt) under.getRaster().getDataBuffer()).getData();
+
+		// over the data, on a transparent layer: dist scale arcs, outside cone fill, cone perim lines
+		BufferedImage over = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+		g2d = over.createGraphics();
+		g2d.setColor(new Color(100,100,100));
+		for (r = 100; r <= 300; r += 100) {
+			g2d.draw(new Ellipse2D.Double( w/2-r, h-1-r*0.95+VOFF, r*2, r*2*0.95));
+		}
+		g2d.setColor(new Color(23,25,0));
+		for (int y= 0-VOFF; y<h+VOFF; y++) {
+			int x = (int) (Math.tan(ANGLE)*(double)(h-y-1));
+			if (x>=0) {
+				g2d.drawLine(0, y, (w/2)-x, y);
+				g2d.drawLine(w-1, y, (w/2)+x,y);
+			}
+		}
+		g2d.setColor(new Color(100,100,100));
+		int x = (int) (Math.tan(ANGLE)*(double)(h-1));
+		g2d.drawLine(w/2, h-1, (w/2)-x, 0);
+		g2d.drawLine(w/2, h-1, (w/2)+x, 0);
+		g2d.dispose();
+
+		int[] argb = ((DataBufferInt) over.getRaster().getDataBuffer()).getData();
+		int n = 0;
+		for (int i=0; i<argb.length; i++) { if (argb[i] != 0) n++; }
+		overlayIndex = new int[n];
+		overlayRGB = new int[n];
+		n = 0;
+		for (int i=0; i<argb.length; i++) {
+			if (argb[i] == 0) continue;
+			overlayIndex[n] = i;
+			overlayRGB[n] = argb[i] & 0xffffff; // no antialiasing, so opaque
+			n++;
+		}
+	}
+}
@@ -1,11 +1,32 @@
 package oculus;
 
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.Map;
 import java.util.Properties;
-import java.util.Set;
-import java.util.Vector;
-
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Shared robot state, name/value pairs.
+ *
+ * Keys in State.values live in an array slot per enum ordinal, anything else in a concurrent map.
+ * Each value is an immutable Value holding the string and its number and boolean forms, parsed
+ * once when set, so reads by enum key (get, getInteger, getLong, getBoolean) are a single volatile
+ * array read, no locking or parsing. String keys are still accepted everywhere, and map to the
+ * same slots. Observers are told of changes asynchronously, see StateDispatcher.
+ *
+ * Every change is also appended to a StateJournal of recent history.
+ *
+ * Threads waiting for a key to meet a Condition (await, when, block) are woken by the set that
+ * meets it, not by polling.
+ */
 public class State {
 	
 	public enum values{ 
@@ -18,24 +39,202 @@ public class State {
 		batterystatus, batterylife,  boottime, // system
 		localaddress, externaladdress, httpPort, // system
 		streamActivityThresholdEnabled, streamActivityThreshold, videosoundmode, stream, driverstream, //audio video
-		muteOnROVmove, volume, framegrabbusy, motiondetectwatching, motiondetected,//audio video
+		muteOnROVmove, volume, framegrabbusy, motiondetectwatching, motiondetected, timelapse, //audio video
 
 		sonarback, sonarright, sonarleft, centerpoint; // experimental
 		
 	};
+	
+	/** key groups, as commented in values, to observe together */
+	public static final values[] MOTORS = { values.firmware, values.serialport, values.motionenabled, 
+		values.speed, values.tempdirection, values.moving, values.sliding, values.movingforward, values.camservopos };
+	public static final values[] DOCK = { values.dockgrabbusy, values.docking, values.dockstatus, values.autodocking, 
+		values.dockxsize, values.dockslope, values.dockxpos, values.dockypos };
+	public static final values[] LIGHTS = { values.floodlighton, values.lightport, values.spotlightbrightness };
+	public static final values[] USERS = { values.driver, values.logintime, values.pendinguserconnected };
+	public static final values[] SYSTEM = { values.batterystatus, values.batterylife, values.boottime, 
+		values.localaddress, values.externaladdress, values.httpPort };
+	public static final values[] AUDIOVIDEO = { values.streamActivityThresholdEnabled, values.streamActivityThreshold, 
+		values.videosoundmode, values.stream, values.driverstream, values.muteOnROVmove, values.volume, 
+		values.framegrabbusy, values.motiondetectwatching, values.motiondetected, values.timelapse };
+	public static final values[] EXPERIMENTAL = { values.sonarback, values.sonarright, values.sonarleft, values.centerpoint };
 
 //	public static final String SEPERATOR = " : ";
 
 	public static final int ERROR = -1;
 
-	/** notify these on change events */
-	public Vector<Observer> observers = new Vector<Observer>();
+	/** notifies observers on change events */
+	private final StateDispatcher dispatcher = new StateDispatcher();
+	
+	/** recent changes, for statehistory */
+	private final StateJournal journal = new StateJournal();
+	
+	/** enum keys by name, for the string API */
+	private static final Map<String, values> KEYS = new HashMap<String, values>();
+	static {
+		for (values key : values.values()) KEYS.put(key.name(), key);
+	}
 	
 	/** reference to this singleton class */
 	private static State singleton = new State();
 
-	/** properties object to hold configuration */
-	private HashMap<String, String> props = new HashMap<String, String>(); 
+	/** values of enum keys, by ordinal, null if not set */
+	private final AtomicReferenceArray<Value> slots = new AtomicReferenceArray<Value>(values.values().length);
+	
+	/** values of any other keys */
+	private final ConcurrentHashMap<String, Value> others = new ConcurrentHashMap<String, Value>();
+	
+	/** threads waiting on conditions, by key */
+	private final ConcurrentHashMap<String, CopyOnWriteArrayList<Waiter>> waiters = 
+			new ConcurrentHashMap<String, CopyOnWriteArrayList<Waiter>>();
+	private final AtomicInteger waiting = new AtomicInteger(); // waiters, so set can skip the lookup
+	
+	/** one value, in the forms it's read as */
+	private static class Value {
+		
+		static final Value TRUE = new Value("true");
+		static final Value FALSE = new Value("false");
+		
+		final String text;
+		final long number; 
+		final boolean isLong;
+		final boolean isInteger;
+		final boolean flag;
+		
+		Value(String text) {
+			this.text = text;
+			long n = ERROR;
+			boolean parsed = false;
+			try {
+				n = Long.parseLong(text);
+				parsed = true;
+			} catch (NumberFormatException e) { }
+			number = n;
+			isLong = parsed;
+			isInteger = parsed && n >= Integer.MIN_VALUE && n <= Integer.MAX_VALUE;
+			flag = Boolean.parseBoolean(text);
+		}
+		
+		Value(long n) {
+			text = Long.toString(n);
+			number = n;
+			isLong = true;
+			isInteger = n >= Integer.MIN_VALUE && n <= Integer.MAX_VALUE;
+			flag = false;
+		}
+	}
+	
+	/** a test on a key's value, to wait for, see the factory methods */
+	public static abstract class Condition {
+		
+		/** @param v current value, null if not set */
+		abstract boolean met(Value v);
+		
+		/** @return met by any value */
+		public static Condition exists() {
+			return new Condition() {
+				boolean met(Value v) { return v != null; }
+			};
+		}
+		
+		/** @return met when the value is target */
+		public static Condition equalTo(final String target) {
+			return new Condition() {
+				boolean met(Value v) { return v != null && v.text.equals(target); }
+			};
+		}
+		
+		/** @return met when the value starts with prefix */
+		public static Condition startsWith(final String prefix) {
+			return new Condition() {
+				boolean met(Value v) { return v != null && v.text.startsWith(prefix); }
+			};
+		}
+		
+		/** @return met when the value is a number above n */
+		public static Condition greaterThan(final long n) {
+			return new Condition() {
+				boolean met(Value v) { return v != null && v.isLong && v.number > n; }
+			};
+		}
+		
+		/** @return met when the value is a number below n */
+		public static Condition lessThan(final long n) {
+			return new Condition() {
+				boolean met(Value v) { return v != null && v.isLong && v.number < n; }
+			};
+		}
+		
+		/** @return met when the value is "true" */
+		public static Condition isTrue() {
+			return new Condition() {
+				boolean met(Value v) { return v != null && v.flag; }
+			};
+		}
+		
+		/** @return block()'s test: any value for "*", else target equals or starts with the value */
+		public static Condition matches(final String target) {
+			return new Condition() {
+				boolean met(Value v) { 
+					if (v == null) return false;
+					return target.equals("*") || target.equals(v.text) || target.startsWith(v.text); 
+				}
+			};
+		}
+	}
+	
+	/** one wait on a condition, completes with the value that met it */
+	private class Waiter implements Future<String> {
+		
+		final String key;
+		final Condition condition;
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile String value = null;
+		private volatile boolean cancelled = false;
+		
+		Waiter(String key, Condition condition) {
+			this.key = key;
+			this.condition = condition;
+		}
+		
+		/** complete if v meets the condition, @return true if done */
+		synchronized boolean check(Value v) {
+			if (done.getCount() == 0) return true;
+			if (!condition.met(v)) return false;
+			value = v.text;
+			done.countDown();
+			return true;
+		}
+		
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			synchronized (this) {
+				if (done.getCount() == 0) return false;
+				cancelled = true;
+				done.countDown();
+			}
+			unregister(this);
+			return true;
+		}
+		
+		public boolean isCancelled() { return cancelled; }
+		
+		public boolean isDone() { return done.getCount() == 0; }
+		
+		public String get() throws InterruptedException, ExecutionException {
+			done.await();
+			return result();
+		}
+		
+		public String get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+			if (!done.await(timeout, unit)) throw new TimeoutException();
+			return result();
+		}
+		
+		private String result() throws ExecutionException {
+			if (cancelled) throw new java.util.concurrent.CancellationException();
+			return value;
+		}
+	}
 	
 	public static State getReference() {
 		return singleton;
@@ -43,8 +242,8 @@ public class State {
 
 	/** private constructor for this singleton class */
 	private State() {
-		props.put(values.boottime.name(), String.valueOf(System.currentTimeMillis()));
-		props.put(values.localaddress.name(), Util.getLocalAddress());
+		put(values.boottime.name(), new Value(System.currentTimeMillis()));
+		put(values.localaddress.name(), new Value(Util.getLocalAddress()));
 		new Thread(new Runnable() {
 			@Override
 			public void run() {
@@ -59,14 +258,142 @@ public class State {
 		}).start();
 	}
 	
-	/** */
+	/** @return value for key, or null */
+	private Value value(values key) {
+		return slots.get(key.ordinal());
+	}
+	
+	/** @return value for key, enum or otherwise, or null */
+	private Value value(String key) {
+		if (key == null) return null;
+		key = key.trim();
+		values k = KEYS.get(key);
+		if (k != null) return slots.get(k.ordinal());
+		return others.get(key);
+	}
+	
+	/** 
+	 * store, or remove if value is null, key already trimmed, no notification 
+	 * 
+	 * @return enum key, or null if it isn't one
+	 */
+	private values put(String key, Value value) {
+		values k = KEYS.get(key);
+		if (k != null) slots.set(k.ordinal(), value);
+		else if (value == null) others.remove(key);
+		else others.put(key, value);
+		return k;
+	}
+	
+	/** store, journal, wake waiters it satisfies, and queue the change for the observers of key, key already trimmed */
+	private void update(String key, Value value) {
+		values k = put(key, value);
+		journal.append(k, key, value == null ? null : value.text);
+		if (waiting.get() > 0) signal(key, value);
+		dispatcher.updated(k, key);
+	}
+	
+	/** complete and remove key's waiters that value satisfies */
+	private void signal(String key, Value value) {
+		CopyOnWriteArrayList<Waiter> list = waiters.get(key);
+		if (list == null) return;
+		for (Waiter waiter : list) {
+			if (waiter.check(value)) unregister(waiter);
+		}
+	}
+	
+	private void unregister(Waiter waiter) {
+		CopyOnWriteArrayList<Waiter> list = waiters.get(waiter.key);
+		if (list != null && list.remove(waiter)) waiting.decrementAndGet();
+	}
+	
+	/**
+	 * Wait for key to meet condition, without blocking
+	 * 
+	 * @return completes with the value that met it, straight away if the current one does. 
+	 * Cancel it to stop waiting
+	 */
+	public Future<String> when(String key, Condition condition) {
+		key = key.trim();
+		Waiter waiter = new Waiter(key, condition);
+		CopyOnWriteArrayList<Waiter> list = waiters.get(key);
+		if (list == null) {
+			list = new CopyOnWriteArrayList<Waiter>();
+			CopyOnWriteArrayList<Waiter> existing = waiters.putIfAbsent(key, list);
+			if (existing != null) list = existing;
+		}
+		// register before checking, so a set in between can't be missed
+		list.add(waiter);
+		waiting.incrementAndGet();
+		if (waiter.check(value(key))) unregister(waiter);
+		return waiter;
+	}
+	
+	public Future<String> when(values key, Condition condition) {
+		return when(key.name(), condition);
+	}
+	
+	/**
+	 * Block until key meets condition
+	 * 
+	 * @return the value that met it, or null if it didn't within timeout ms
+	 */
+	public String await(String key, Condition condition, long timeout) {
+		Future<String> future = when(key, condition);
+		try {
+			return future.get(timeout, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+		} catch (ExecutionException e) {
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		future.cancel(false);
+		return null;
+	}
+	
+	public String await(values key, Condition condition, long timeout) {
+		return await(key.name(), condition, timeout);
+	}
+	
+	/** @return snapshot of all set values */
 	public Properties getProperties(){
-		return (Properties) props.clone();
+		Properties props = new Properties();
+		for (values key : values.values()) {
+			Value v = value(key);
+			if (v != null) props.setProperty(key.name(), v.text);
+		}
+		for (Map.Entry<String, Value> entry : others.entrySet()) 
+			props.setProperty(entry.getKey(), entry.getValue().text);
+		return props;
 	}
 
-	/** */
+	/** obs is told of every change from now on, on a dispatch thread */
 	public void addObserver(Observer obs){
-		observers.add(obs);
+		dispatcher.add(obs);
+	}
+	
+	/** 
+	 * obs is told only of changes to these keys (see the groups above), on a dispatch thread 
+	 * 
+	 * @param keys at least one, or obs observes everything
+	 */
+	public void addObserver(Observer obs, values... keys){
+		dispatcher.add(obs, keys);
+	}
+	
+	/** */
+	public void removeObserver(Observer obs){
+		dispatcher.remove(obs);
+	}
+	
+	/** @return observer queues, for metrics */
+	public StateDispatcher getDispatcher(){
+		return dispatcher;
+	}
+	
+	/** @return recent changes, for statehistory */
+	public StateJournal getJournal() {
+		return journal;
 	}
 	
 	/** test for string equality. any nulls will return false */ 
@@ -80,186 +407,91 @@ public class State {
 		return aa.equalsIgnoreCase(b);
 	}
 	
-	
-	/** */
-//	public String dump(){
-////		System.out.println("state number of listeners: " + observers.size());
-////		for(int i = 0 ; i < observers.size() ; i++) 
-////			System.out.println(i + " " + observers.get(i).getClass().getName() + "\n");
-////		
-////		try {
-////			Set<String> keys = props.keySet();
-////			for(Iterator<String> i = keys.iterator(); i.hasNext(); ){
-////				String key = i.next();
-////				System.out.println( key + "<> " + props.get(key));
-////			}
-////			
-////		} catch (Exception e) {
-////			Util.log(e.getLocalizedMessage(), this);
-////		}
-//		return
-//	}
-	
 	/** */
 	@Override
 	public String toString(){	
 		String str = "";
-		Set<String> keys = props.keySet();
-		for(Iterator<String> i = keys.iterator(); i.hasNext(); ){
-			String key = i.next();
-			str += (key + " " + props.get(key) + "<br>");
+		for (values key : values.values()) {
+			Value v = value(key);
+			if (v != null) str += (key.name() + " " + v.text + "<br>");
 		}
+		for (Map.Entry<String, Value> entry : others.entrySet()) 
+			str += (entry.getKey() + " " + entry.getValue().text + "<br>");
 		return str;
 	}
 	
-	/** */
+	/** @return true once member is set to target, or target starts with its value, or to anything for "*", false after timeout ms */
 	public boolean block(final String member, final String target, int timeout){
-		
-		long start = System.currentTimeMillis();
-		String current = null;
-		while(true){
-			
-			// keep checking 
-			current = get(member); 
-			
-			if(current!=null){
-				if(target.equals("*")) return true;	
-				if(target.equals(current)) return true;
-				if(target.startsWith(current)) return true;
-			}
-				
-			//
-			// TODO: FIX ?? 
-			//
-			Util.delay(50);
-			//System.out.print(".");
-			if (System.currentTimeMillis()-start > timeout){ 
-				//System.out.println();
-				return false;
-			}
-		}
+		return await(member, Condition.matches(target), timeout) != null;
 	}
 	
 	/** Put a name/value pair into the configuration */
-	public synchronized void set(final String key, final String value) {
+	public void set(final String key, final String value) {
 		if(key==null) return;
 		if(value==null) return;
-		try {
-			props.put(key.trim(), value.trim());
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
-		
-		for(int i = 0 ; i < observers.size() ; i++)
-			observers.get(i).updated(key.trim());	
+		update(key.trim(), new Value(value.trim()));
 	}
 
 	/** Put a name/value pair into the config */
 	public void set(final String key, final long value) {
-		set(key, Long.toString(value));
+		if(key==null) return;
+		update(key.trim(), new Value(value));
 	}
 	
 	public String get(values key){
-		return get(key.name());
+		Value v = value(key);
+		return v == null ? null : v.text;
 	}
 	
-	/** */
-	public synchronized String get(final String key) {
-
-		String ans = null;
-		try {
-
-			ans = props.get(key.trim());
-
-		} catch (Exception e) {
-			System.err.println(e.getStackTrace());
-			return null;
-		}
-
-		return ans;
+	/** string keys, use the enum where there is one */
+	public String get(final String key) {
+		Value v = value(key);
+		return v == null ? null : v.text;
 	}
 
-
-	
-	
 	/** */
-	public synchronized boolean getBoolean(String key) {
-//		key = key.toLowerCase();
-		boolean value = false;
-		try {
-
-			value = Boolean.parseBoolean(get(key));
-
-		} catch (Exception e) {
-			if(key.equals("yes")) return true;
-			else return false;
-		}
-
-		return value;
+	public boolean getBoolean(String key) {
+		Value v = value(key);
+		return v != null && v.flag;
 	}
 
 	/** */
 	public int getInteger(final String key) {
-
-		String ans = null;
-		int value = ERROR;
-
-		try {
-
-			ans = get(key);
-			value = Integer.parseInt(ans);
-
-		} catch (Exception e) {
-			return ERROR;
-		}
-
-		return value;
+		Value v = value(key);
+		return v != null && v.isInteger ? (int) v.number : ERROR;
 	}
 	
 	/** */
 	public long getLong(final String key) {
-
-		String ans = null;
-		long value = ERROR;
-
-		try {
-
-			ans = get(key);
-			value = Long.parseLong(ans);
-
-		} catch (Exception e) {
-			return ERROR;
-		}
-
-		return value;
+		Value v = value(key);
+		return v != null && v.isLong ? v.number : ERROR;
 	}
 	
 	/** @return the ms since last boot */
 	public long getUpTime(){
-		return System.currentTimeMillis() - getLong(values.boottime.name());
+		return System.currentTimeMillis() - getLong(values.boottime);
 	}
 	
 	/** @return the ms since last user log in */
 	public long getLoginSince(){
-		return System.currentTimeMillis() - getLong(values.logintime.name());
+		return System.currentTimeMillis() - getLong(values.logintime);
 	}
 
 	/** */
-	public synchronized void set(String key, boolean b) {
-		if(b) set(key, "true");
-		else set(key, "false");
+	public void set(String key, boolean b) {
+		if(key==null) return;
+		update(key.trim(), b ? Value.TRUE : Value.FALSE);
 	}
 	
 	/** */
-	public synchronized boolean exists(String key) {
-		return props.containsKey(key);
+	public boolean exists(String key) {
+		return value(key) != null;
 	}
 
 	/** */ 
-	public synchronized void delete(String key) {
-		props.remove(key);
-		for(int i = 0 ; i < observers.size() ; i++)
-			observers.get(i).updated(key);	
+	public void delete(String key) {
+		if(key==null) return;
+		update(key.trim(), null);
 	}
 
 	//access to playercommands for state values defeats purpose of enum values
@@ -284,15 +516,18 @@ public class State {
 	}
 
 	public int getInteger(values key) {
-		return getInteger(key.name());
+		Value v = value(key);
+		return v != null && v.isInteger ? (int) v.number : ERROR;
 	}
 	
 	public long getLong(values key){
-		return getLong(key.name());
+		Value v = value(key);
+		return v != null && v.isLong ? v.number : ERROR;
 	}
 	
 	public boolean getBoolean(values key){
-		return getBoolean(key.name());
+		Value v = value(key);
+		return v != null && v.flag;
 	}
 	
 	public void set(values key, long data){
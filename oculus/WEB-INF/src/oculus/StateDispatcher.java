@@ -0,0 +1,198 @@
+package oculus;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Delivers State changes to observers off the setting thread.
+ *
+ * Each observer has its own queue of changed keys, drained in order by one pooled thread at a
+ * time, so a slow observer (a telnet client that stopped reading, say) only holds up itself.
+ * Observers read the value from State when told, so a key changed again while still queued is
+ * coalesced into the one pending notice, which then sees the newest value. A queue holds at most
+ * CAPACITY distinct keys, past that the oldest notice is dropped and counted.
+ *
+ * Observers can subscribe to particular State.values keys, kept in a list per key, so a change
+ * only touches the observers interested in it. Observers of all keys also get non enum keys.
+ */
+public class StateDispatcher {
+
+	/** most distinct keys waiting per observer */
+	public static final int CAPACITY = 1024;
+
+	/** every observer */
+	private final CopyOnWriteArrayList<Channel> channels = new CopyOnWriteArrayList<Channel>();
+	
+	/** observers of all keys */
+	private final CopyOnWriteArrayList<Channel> everything = new CopyOnWriteArrayList<Channel>();
+	
+	/** observers by State.values ordinal */
+	private final List<CopyOnWriteArrayList<Channel>> byKey = new ArrayList<CopyOnWriteArrayList<Channel>>();
+
+	private final ExecutorService pool = Executors.newCachedThreadPool(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "state dispatch");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	StateDispatcher() {
+		for (int i = 0; i < State.values.values().length; i++) byKey.add(new CopyOnWriteArrayList<Channel>());
+	}
+
+	/** one observer's queue and counters */
+	private class Channel implements Runnable {
+
+		final Observer observer;
+
+		// guarded by this
+		private LinkedHashMap<String, Long> pending = new LinkedHashMap<String, Long>(); // key, first queued ns
+		private boolean scheduled = false;
+		private long delivered = 0;
+		private long coalesced = 0;
+		private long dropped = 0;
+		private int maxDepth = 0;
+		private long totalLatency = 0; // ns
+		private long maxLatency = 0;
+
+		Channel(Observer observer) {
+			this.observer = observer;
+		}
+
+		void offer(String key) {
+			synchronized (this) {
+				if (pending.containsKey(key)) {
+					coalesced++;
+					return;
+				}
+				if (pending.size() >= CAPACITY) {
+					Iterator<String> eldest = pending.keySet().iterator();
+					eldest.next();
+					eldest.remove();
+					if (dropped++ == 0) Util.log("observer " + name() + " fell behind, dropping state changes", this);
+				}
+				pending.put(key, System.nanoTime());
+				maxDepth = Math.max(maxDepth, pending.size());
+				if (scheduled) return;
+				scheduled = true;
+			}
+			pool.execute(this);
+		}
+
+		/** deliver until the queue is empty */
+		public void run() {
+			while (true) {
+				String key;
+				long queued;
+				synchronized (this) {
+					Iterator<Map.Entry<String, Long>> i = pending.entrySet().iterator();
+					if (!i.hasNext()) {
+						scheduled = false;
+						notifyAll();
+						return;
+					}
+					Map.Entry<String, Long> next = i.next();
+					key = next.getKey();
+					queued = next.getValue();
+					i.remove();
+				}
+
+				try {
+					observer.updated(key);
+				} catch (Exception e) {
+					Util.log("observer " + name() + " failed on " + key + ": " + e.getLocalizedMessage(), this);
+				}
+
+				long latency = System.nanoTime() - queued;
+				synchronized (this) {
+					delivered++;
+					totalLatency += latency;
+					maxLatency = Math.max(maxLatency, latency);
+				}
+			}
+		}
+
+		/** @return true once nothing is queued or being delivered, false if still busy after ms */
+		synchronized boolean idle(long ms) throws InterruptedException {
+			long until = System.currentTimeMillis() + ms;
+			while (scheduled) {
+				long wait = until - System.currentTimeMillis();
+				if (wait <= 0) return false;
+				wait(wait);
+			}
+			return true;
+		}
+
+		String name() {
+			return observer.getClass().getName();
+		}
+
+		@Override
+		public synchronized String toString() {
+			return name() + " depth: " + pending.size() + " max: " + maxDepth + " delivered: " + delivered
+					+ " coalesced: " + coalesced + " dropped: " + dropped
+					+ " latency avg: " + (delivered == 0 ? 0 : totalLatency/delivered/1000) + " us max: " + maxLatency/1000 + " us";
+		}
+	}
+
+	/** @param keys to observe, none for all */
+	void add(Observer observer, State.values... keys) {
+		Channel channel = new Channel(observer);
+		channels.add(channel);
+		if (keys.length == 0) everything.add(channel);
+		for (State.values key : keys) {
+			List<Channel> observers = byKey.get(key.ordinal());
+			if (!observers.contains(channel)) observers.add(channel);
+		}
+	}
+
+	void remove(Observer observer) {
+		for (Channel channel : channels) {
+			if (channel.observer != observer) continue;
+			channels.remove(channel);
+			everything.remove(channel);
+			for (List<Channel> observers : byKey) observers.remove(channel);
+		}
+	}
+
+	/** 
+	 * queue key for the observers interested in it 
+	 * 
+	 * @param k enum key, or null if key isn't one
+	 */
+	void updated(State.values k, String key) {
+		if (k != null) {
+			for (Channel channel : byKey.get(k.ordinal())) channel.offer(key);
+		}
+		for (Channel channel : everything) channel.offer(key);
+	}
+
+	/**
+	 * Wait for every observer to catch up, for tests and orderly shutdown
+	 *
+	 * @return false if some were still busy after ms
+	 */
+	public boolean drain(long ms) throws InterruptedException {
+		long until = System.currentTimeMillis() + ms;
+		for (Channel channel : channels) {
+			if (!channel.idle(Math.max(1, until - System.currentTimeMillis()))) return false;
+		}
+		return true;
+	}
+
+	/** @return one line per observer: queue depth, deliveries and dispatch latency */
+	@Override
+	public String toString() {
+		String str = "";
+		for (Channel channel : channels) str += channel.toString() + "<br>";
+		return str;
+	}
+}
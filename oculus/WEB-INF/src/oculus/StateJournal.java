@@ -0,0 +1,198 @@
+package oculus;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Journal of the most recent State changes, for working out what happened after the fact
+ * (a failed docking run, say).
+ *
+ * Every set and delete is appended to a preallocated ring of CAPACITY entries: nanoTime, key
+ * ordinal (-1 and the name for keys that aren't State.values), and the new value, null if
+ * deleted. Appending claims a slot with one atomic increment and never locks or waits, so it
+ * costs the setting thread a few volatile writes. Each slot carries the sequence number of the
+ * entry in it, written last, and readers skip any slot whose sequence changed while they read it,
+ * so a snapshot never returns a half written entry.
+ *
+ * Dumps are written to the log folder as statejournal-[date].dat, see dump(OutputStream).
+ */
+public class StateJournal {
+
+	/** entries kept, a power of 2 */
+	public static final int CAPACITY = 16*1024;
+	private static final int MASK = CAPACITY - 1;
+
+	private static final int MAGIC = 0x4f43534a; // OCSJ
+	private static final int VERSION = 1;
+
+	public static final String FOLDER = Settings.redhome + Settings.sep + "log";
+
+	/** sequence number of the next entry */
+	private final AtomicLong next = new AtomicLong();
+
+	private final AtomicLongArray seqs = new AtomicLongArray(CAPACITY); // -1 while being written
+	private final AtomicLongArray times = new AtomicLongArray(CAPACITY);
+	private final AtomicIntegerArray keys = new AtomicIntegerArray(CAPACITY);
+	private final AtomicReferenceArray<String> names = new AtomicReferenceArray<String>(CAPACITY);
+	private final AtomicReferenceArray<String> texts = new AtomicReferenceArray<String>(CAPACITY);
+
+	/** to turn nanoTime into wall clock time */
+	private final long baseMillis = System.currentTimeMillis();
+	private final long baseNanos = System.nanoTime();
+
+	StateJournal() {
+		for (int i = 0; i < CAPACITY; i++) seqs.set(i, -1);
+	}
+
+	/** one journal entry */
+	public static class Entry {
+		public final long nanos;
+		public final State.values key; // null if not an enum key
+		public final String name;
+		public final String value; // null if deleted
+
+		private Entry(long nanos, State.values key, String name, String value) {
+			this.nanos = nanos;
+			this.key = key;
+			this.name = name;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * record a change, never blocks
+	 *
+	 * @param k enum key, or null if name isn't one
+	 * @param value new value, null if deleted
+	 */
+	void append(State.values k, String name, String value) {
+		long seq = next.getAndIncrement();
+		int i = (int) seq & MASK;
+		seqs.set(i, -1);
+		times.set(i, System.nanoTime());
+		keys.set(i, k == null ? -1 : k.ordinal());
+		names.set(i, k == null ? name : null);
+		texts.set(i, value);
+		seqs.set(i, seq);
+	}
+
+	/** 
+	 * @param key null for all
+	 * @param seconds only entries this recent, 0 for all
+	 * @return entries still in the ring, oldest first 
+	 */
+	public Entry[] snapshot(String key, int seconds) {
+		long since = System.nanoTime() - seconds * 1000000000L;
+		State.values[] all = State.values.values();
+		long last = next.get();
+		long first = Math.max(0, last - CAPACITY);
+		Entry[] found = new Entry[(int) (last - first)];
+		int n = 0;
+		for (long seq = first; seq < last; seq++) {
+			int i = (int) seq & MASK;
+			if (seqs.get(i) != seq) continue; // being written, or overwritten
+			long nanos = times.get(i);
+			int ordinal = keys.get(i);
+			String name = names.get(i);
+			String text = texts.get(i);
+			if (seqs.get(i) != seq) continue;
+
+			if (seconds > 0 && nanos - since < 0) continue;
+			State.values k = ordinal < 0 ? null : all[ordinal];
+			if (k != null) name = k.name();
+			if (key != null && !key.equals(name)) continue;
+			found[n++] = new Entry(nanos, k, name, text);
+		}
+		Entry[] entries = new Entry[n];
+		System.arraycopy(found, 0, entries, 0, n);
+		return entries;
+	}
+
+	/** @return wall clock ms of an entry */
+	public long millis(Entry entry) {
+		return baseMillis + (entry.nanos - baseNanos) / 1000000;
+	}
+
+	/**
+	 * @param key null for all
+	 * @return changes in the last seconds, one per line, oldest first
+	 */
+	public String history(String key, int seconds) {
+		Entry[] entries = snapshot(key, seconds);
+		if (entries.length == 0) return "no changes";
+		SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss.SSS");
+		StringBuilder str = new StringBuilder();
+		for (Entry entry : entries) {
+			str.append(format.format(new Date(millis(entry)))).append(' ').append(entry.name).append(' ');
+			str.append(entry.value == null ? "deleted" : entry.value).append('\n');
+		}
+		return str.toString();
+	}
+
+	/** @return number of changes recorded since boot */
+	public long count() {
+		return next.get();
+	}
+
+	/**
+	 * Write every entry still in the ring to the log folder
+	 *
+	 * @return file written
+	 */
+	public File dump() throws IOException {
+		File folder = new File(FOLDER);
+		if (!folder.exists()) folder.mkdirs();
+		String date = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss").format(new Date());
+		File file = new File(folder, "statejournal-" + date + ".dat");
+		OutputStream out = new FileOutputStream(file);
+		try {
+			dump(out);
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	/**
+	 * Write every entry still in the ring, big endian:
+	 *
+	 * header: magic OCSJ, int version, long wall clock ms and long nanoTime at the same instant,
+	 * short number of State.values then their names (UTF) by ordinal, int number of entries
+	 *
+	 * entry: long nanoTime, short ordinal, name (UTF) if ordinal is -1, byte 1 and the value
+	 * (UTF) if set or 0 if deleted
+	 */
+	public void dump(OutputStream stream) throws IOException {
+		Entry[] entries = snapshot(null, 0);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeLong(baseMillis);
+		out.writeLong(baseNanos);
+		State.values[] all = State.values.values();
+		out.writeShort(all.length);
+		for (State.values k : all) out.writeUTF(k.name());
+		out.writeInt(entries.length);
+		for (Entry entry : entries) {
+			out.writeLong(entry.nanos);
+			out.writeShort(entry.key == null ? -1 : entry.key.ordinal());
+			if (entry.key == null) out.writeUTF(entry.name);
+			if (entry.value == null) out.writeByte(0);
+			else {
+				out.writeByte(1);
+				out.writeUTF(entry.value);
+			}
+		}
+		out.flush();
+	}
+}
@@ -0,0 +1,442 @@
+package oculus;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Time lapse recorder, for leaving the robot on watch.
+ *
+ * While recording, a full size frame is grabbed every interval and appended to the current
+ * segment: one large data file of JPEGs back to back, plus a memory mapped index of fixed size
+ * records (capture time, offset, length, tilt, moving/dock flags), so a frame can be found by
+ * time with a binary search and read with a single positional read. A new segment starts when
+ * the current one reaches SEGMENT_BYTES, SEGMENT_RECORDS frames or SEGMENT_AGE ms, and segments
+ * older than the timelapsehours setting are deleted.
+ *
+ * Segments live in the timelapse folder as seg-[start ms].dat and seg-[start ms].idx
+ */
+public class TimeLapse {
+
+	public static final String FOLDER = Settings.redhome + Settings.sep + "timelapse";
+
+	public static final long SEGMENT_BYTES = 64*1024*1024;
+	public static final int SEGMENT_RECORDS = 16*1024;
+	public static final long SEGMENT_AGE = 60*60*1000;
+
+	/** record flags */
+	public static final int MOVING = 1, DOCKED = 2, DOCKING = 4;
+
+	private static final int MAGIC = 0x4f43544c; // OCTL
+	private static final int HEADER = 16; // magic, version, count, spare
+	private static final int RECORD = 24; // timestamp, offset, length, tilt, flags
+
+	private static TimeLapse singleton = new TimeLapse();
+
+	private Settings settings = Settings.getReference();
+	private State state = State.getReference();
+
+	// guarded by this
+	private List<Segment> segments = null; // oldest first, loaded on first use
+	private Segment current = null;
+	private Thread recorder = null;
+	private int interval = 0;
+
+	public static TimeLapse getReference() {
+		return singleton;
+	}
+
+	private TimeLapse() { }
+
+	/** one recorded frame, as indexed */
+	public static class Record {
+		public final long timestamp;
+		public final int length;
+		public final int tilt; // camservopos, -1 if unknown
+		public final int flags;
+		private final Segment segment;
+		private final long offset;
+
+		private Record(Segment segment, long timestamp, long offset, int length, int tilt, int flags) {
+			this.segment = segment;
+			this.timestamp = timestamp;
+			this.offset = offset;
+			this.length = length;
+			this.tilt = tilt;
+			this.flags = flags;
+		}
+
+		/** @return unique within this server, for ETags */
+		public String getId() {
+			return segment.start + "-" + offset;
+		}
+	}
+
+	/** @return true if recording */
+	public synchronized boolean isRecording() {
+		return recorder != null;
+	}
+
+	/**
+	 * Start recording, or change the interval if already recording
+	 *
+	 * @param seconds between frames, at least 1
+	 */
+	public synchronized void start(int seconds) {
+		interval = Math.max(1, seconds);
+		state.set(State.values.timelapse, interval);
+		if (recorder != null) return;
+		recorder = new Thread(new Runnable() {
+			public void run() {
+				record();
+			}
+		}, "time lapse");
+		recorder.setDaemon(true);
+		recorder.start();
+		Util.log("time lapse recording every " + interval + " s to " + FOLDER, this);
+	}
+
+	/** stop recording and close the current segment */
+	public synchronized void stop() {
+		if (recorder == null) return;
+		recorder.interrupt();
+		recorder = null;
+		if (current != null) {
+			current.close();
+			current = null;
+		}
+		state.delete(State.values.timelapse);
+		Util.log("time lapse recording stopped", this);
+	}
+
+	private void record() {
+		FrameGrabBroker broker = FrameGrabBroker.getReference();
+		Thread me = Thread.currentThread();
+		while (true) {
+			long start = System.currentTimeMillis();
+			Frame frame = broker.streaming() ? broker.await(FrameGrabBroker.Size.full) : null;
+			synchronized (this) {
+				if (recorder != me) return;
+			}
+			if (frame != null) {
+				try {
+					append(me, frame);
+				} catch (IOException e) {
+					Util.log("time lapse append failed: " + e.getLocalizedMessage(), this);
+				}
+			}
+			long wait = interval*1000L - (System.currentTimeMillis() - start);
+			try {
+				if (wait > 0) { Thread.sleep(wait); }
+			} catch (InterruptedException e) {
+				return; // stopped
+			}
+		}
+	}
+
+	/** 
+	 * add a frame to the current segment, rolling over first if it's full. The lock is only held
+	 * to swap segments, so find, range and list don't wait on disk writes, the segment's own lock
+	 * orders the write against its readers 
+	 */
+	private void append(Thread me, Frame frame) throws IOException {
+		Segment segment;
+		synchronized (this) {
+			if (recorder != me) return;
+			load();
+			segment = current;
+		}
+		if (segment == null || segment.full(frame.getLength(), frame.getTimestamp())) {
+			if (segment != null) { segment.close(); }
+			segment = Segment.create(new File(FOLDER), frame.getTimestamp());
+			List<Segment> expired;
+			synchronized (this) {
+				if (recorder != me) { // stopped meanwhile
+					segment.delete();
+					return;
+				}
+				current = segment;
+				segments.add(segment);
+				expired = expire();
+			}
+			for (Segment old : expired) {
+				old.delete();
+				Util.debug("time lapse segment expired: " + old.start, this);
+			}
+		}
+
+		int tilt = -1;
+		try {
+			if (frame.getTilt() != null) { tilt = Integer.parseInt(frame.getTilt()); }
+		} catch (NumberFormatException e) { }
+		int flags = 0;
+		if (frame.isMoving()) { flags |= MOVING; }
+		if (AutoDock.DOCKED.equals(frame.getDockStatus())) { flags |= DOCKED; }
+		if (AutoDock.DOCKING.equals(frame.getDockStatus())) { flags |= DOCKING; }
+
+		segment.append(frame, tilt, flags);
+	}
+
+	/** read existing segments from disk, once, caller holds the lock */
+	private void load() {
+		if (segments != null) return;
+		segments = new ArrayList<Segment>();
+		File[] files = new File(FOLDER).listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.startsWith("seg-") && name.endsWith(".idx");
+			}
+		});
+		if (files == null) return;
+		Arrays.sort(files);
+		for (File index : files) {
+			try {
+				segments.add(Segment.open(index));
+			} catch (IOException e) {
+				Util.log("skipping time lapse segment " + index.getName() + ": " + e.getLocalizedMessage(), this);
+			}
+		}
+	}
+
+	/** 
+	 * drop segments past the timelapsehours setting from the list, caller holds the lock 
+	 * 
+	 * @return segments dropped, for the caller to delete once it lets go of the lock
+	 */
+	private List<Segment> expire() {
+		List<Segment> expired = new ArrayList<Segment>();
+		int hours = settings.getInteger(ManualSettings.timelapsehours);
+		if (hours <= 0) return expired;
+		long cutoff = System.currentTimeMillis() - hours*60L*60L*1000L;
+		while (segments.size() > 1 && segments.get(0) != current && segments.get(0).end() < cutoff) {
+			expired.add(segments.remove(0));
+		}
+		return expired;
+	}
+
+	/** @return last frame recorded at or before time, or null */
+	public synchronized Record find(long time) {
+		load();
+		for (int i = segments.size() - 1; i >= 0; i--) {
+			Segment segment = segments.get(i);
+			if (segment.start > time) continue;
+			int n = segment.before(time);
+			if (n >= 0) return segment.record(n);
+		}
+		return null;
+	}
+
+	/** @return frames recorded from, to inclusive, in order */
+	public synchronized List<Record> range(long from, long to) {
+		load();
+		List<Record> records = new ArrayList<Record>();
+		for (Segment segment : segments) {
+			if (segment.start > to || segment.end() < from) continue;
+			for (int n = Math.max(0, segment.before(from - 1) + 1); n < segment.count(); n++) {
+				Record record = segment.record(n);
+				if (record == null || record.timestamp > to) break;
+				records.add(record);
+			}
+		}
+		return records;
+	}
+
+	/**
+	 * Read a recorded frame's JPEG, fails with IOException if its segment has since expired
+	 *
+	 * @param buffer to read into if big enough, or null
+	 * @return buffer holding record.length bytes, or a new one if buffer was too small
+	 */
+	public byte[] read(Record record, byte[] buffer) throws IOException {
+		if (buffer == null || buffer.length < record.length) { buffer = new byte[record.length]; }
+		record.segment.read(record.offset, buffer, record.length);
+		return buffer;
+	}
+
+	/** @return one line per segment: start, end, frames, bytes */
+	public synchronized String list() {
+		load();
+		StringBuilder str = new StringBuilder();
+		for (Segment segment : segments) {
+			str.append(segment.start + " " + segment.end() + " " + segment.count() + " " + segment.size() + "\n");
+		}
+		return str.toString();
+	}
+
+	/** a data file and its index */
+	private static class Segment {
+
+		final long start;
+		final File data;
+		final File index;
+		private MappedByteBuffer map;
+		private FileChannel channel = null; // opened on first read or write, read only once closed
+		private boolean writable;
+		private boolean deleted = false;
+		private long size;
+
+		private Segment(long start, File data, File index, MappedByteBuffer map, boolean writable, long size) {
+			this.start = start;
+			this.data = data;
+			this.index = index;
+			this.map = map;
+			this.writable = writable;
+			this.size = size;
+		}
+
+		/** new empty segment for recording, starting at time */
+		static Segment create(File folder, long time) throws IOException {
+			folder.mkdirs();
+			File data = new File(folder, "seg-" + time + ".dat");
+			File index = new File(folder, "seg-" + time + ".idx");
+			RandomAccessFile file = new RandomAccessFile(index, "rw");
+			MappedByteBuffer map;
+			try {
+				map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER + (long) SEGMENT_RECORDS*RECORD);
+			} finally {
+				file.close(); // the mapping stays valid
+			}
+			map.putInt(0, MAGIC);
+			map.putInt(4, 1);
+			map.putInt(8, 0);
+			return new Segment(time, data, index, map, true, 0);
+		}
+
+		/** existing segment, read only */
+		static Segment open(File index) throws IOException {
+			String name = index.getName();
+			long start;
+			try {
+				start = Long.parseLong(name.substring(4, name.length() - 4));
+			} catch (NumberFormatException e) {
+				throw new IOException("bad segment name");
+			}
+			File data = new File(index.getParentFile(), "seg-" + start + ".dat");
+			RandomAccessFile file = new RandomAccessFile(index, "r");
+			MappedByteBuffer map;
+			try {
+				map = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+			} finally {
+				file.close();
+			}
+			if (map.capacity() < HEADER || map.getInt(0) != MAGIC) throw new IOException("not a segment index");
+			Segment segment = new Segment(start, data, index, map, false, 0);
+			int count = segment.count();
+			segment.size = count == 0 ? 0 : segment.record(count - 1).offset + segment.record(count - 1).length;
+			return segment;
+		}
+
+		/** @return frames indexed, never more than the index file can hold, 0 once deleted */
+		synchronized int count() {
+			if (deleted) return 0;
+			return Math.min(map.getInt(8), (map.capacity() - HEADER)/RECORD);
+		}
+
+		synchronized long size() {
+			return size;
+		}
+
+		/** @return last capture time, or start if empty */
+		synchronized long end() {
+			int count = count();
+			return count == 0 ? start : map.getLong(HEADER + (count - 1)*RECORD);
+		}
+
+		/** @return true if a frame of length bytes at time belongs in a new segment */
+		synchronized boolean full(int length, long time) {
+			return count() >= SEGMENT_RECORDS || size + length > SEGMENT_BYTES || time - start > SEGMENT_AGE;
+		}
+
+		/** frame bytes go in first, the index record and count after, so readers never see half a frame */
+		synchronized void append(Frame frame, int tilt, int flags) throws IOException {
+			if (!writable) throw new IOException("segment closed");
+			ByteBuffer bytes = ByteBuffer.wrap(frame.getJpeg(), 0, frame.getLength());
+			long offset = size;
+			FileChannel out = channel();
+			while (bytes.hasRemaining()) { out.write(bytes, offset + bytes.position()); }
+			if (!frame.isValid()) return; // lapped while writing, next append overwrites it
+
+			int count = count();
+			int at = HEADER + count*RECORD;
+			map.putLong(at, frame.getTimestamp());
+			map.putInt(at + 8, (int) offset);
+			map.putInt(at + 12, frame.getLength());
+			map.putInt(at + 16, tilt);
+			map.putInt(at + 20, flags);
+			map.putInt(8, count + 1);
+			size = offset + frame.getLength();
+		}
+
+		/** @return record n, or null if the segment has been deleted */
+		synchronized Record record(int n) {
+			if (deleted) return null;
+			int at = HEADER + n*RECORD;
+			return new Record(this, map.getLong(at), map.getInt(at + 8) & 0xffffffffL, map.getInt(at + 12),
+					map.getInt(at + 16), map.getInt(at + 20));
+		}
+
+		/** @return index of the last record at or before time, -1 if none */
+		synchronized int before(long time) {
+			int lo = 0, hi = count() - 1, found = -1;
+			while (lo <= hi) {
+				int mid = (lo + hi) >>> 1;
+				if (map.getLong(HEADER + mid*RECORD) <= time) {
+					found = mid;
+					lo = mid + 1;
+				}
+				else { hi = mid - 1; }
+			}
+			return found;
+		}
+
+		void read(long offset, byte[] buffer, int length) throws IOException {
+			ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, length);
+			FileChannel in = channel();
+			while (bytes.hasRemaining()) {
+				if (in.read(bytes, offset + bytes.position()) < 0) throw new IOException("segment truncated");
+			}
+		}
+
+		private synchronized FileChannel channel() throws IOException {
+			if (deleted) throw new IOException("time lapse segment " + start + " expired");
+			if (channel == null) { channel = new RandomAccessFile(data, writable ? "rw" : "r").getChannel(); }
+			return channel;
+		}
+
+		/** stop writing and release the file, the segment stays readable, reopened read only on demand */
+		synchronized void close() {
+			if (!writable) return;
+			writable = false;
+			map.force();
+			try {
+				if (channel != null) { 
+					channel.force(false); 
+					channel.close();
+				}
+			} catch (IOException e) {
+				Util.log("time lapse segment flush failed: " + e.getLocalizedMessage(), this);
+			}
+			channel = null;
+		}
+
+		/** remove from disk, records already handed out fail to read after this */
+		synchronized void delete() {
+			deleted = true;
+			writable = false;
+			try {
+				if (channel != null) { channel.close(); }
+			} catch (IOException e) { }
+			channel = null;
+			map = null; // index file may not delete until the mapping is collected, on windows
+			if (!data.delete() | !index.delete()) {
+				Util.log("can't delete time lapse segment " + start, this);
+			}
+		}
+	}
+}
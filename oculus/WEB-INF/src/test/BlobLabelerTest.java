@@ -0,0 +1,134 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import oculus.BlobLabeler;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class BlobLabelerTest {
+
+	static final int W = 40;
+	static final int H = 30;
+
+	BlobLabeler labeler = new BlobLabeler();
+	byte[] grey = new byte[W*H];
+
+	/** paint a rectangle, inclusive corners */
+	private void fill(int x0, int y0, int x1, int y1, int value) {
+		for (int y = y0; y <= y1; y++)
+			for (int x = x0; x <= x1; x++)
+				grey[x + y*W] = (byte) value;
+	}
+
+	@Before
+	public void setUp() {
+		System.out.println("running: " + getClass().toString());
+
+		// white ring with a black center, plus a separate white square
+		fill(5, 5, 20, 20, 200);
+		fill(10, 10, 15, 15, 0);
+		fill(30, 2, 33, 5, 200);
+	}
+
+	@Test
+	public void testComponents() {
+		int count = labeler.label(grey, W, H, 100);
+
+		// background, ring, center hole, small square
+		assertEquals(4, count);
+
+		int ring = labeler.labelAt(5 + 5*W);
+		int hole = labeler.labelAt(12 + 12*W);
+		int square = labeler.labelAt(31 + 3*W);
+		int background = labeler.labelAt(0);
+
+		assertTrue(labeler.isWhite(ring));
+		assertTrue(labeler.isWhite(square));
+		assertFalse(labeler.isWhite(hole));
+		assertFalse(labeler.isWhite(background));
+
+		// components numbered in scan order
+		assertEquals(1, background);
+		assertTrue(square < ring);
+		assertTrue(ring < hole);
+	}
+
+	@Test
+	public void testStats() {
+		labeler.label(grey, W, H, 100);
+
+		int ring = labeler.labelAt(5 + 5*W);
+		int[] r = labeler.getRect(ring, new int[5]);
+		assertEquals(5, r[0]);
+		assertEquals(20, r[1]);
+		assertEquals(5, r[2]);
+		assertEquals(20, r[3]);
+		assertEquals(16*16 - 6*6, r[4]);
+		assertEquals(12.5f, labeler.getCentroidX(ring), 0.001f);
+		assertEquals(12.5f, labeler.getCentroidY(ring), 0.001f);
+
+		int hole = labeler.labelAt(12 + 12*W);
+		assertEquals(36, labeler.getArea(hole));
+	}
+
+	@Test
+	public void testDescriptors() {
+		labeler.label(grey, W, H, 100);
+
+		int square = labeler.labelAt(31 + 3*W);
+		assertEquals(16*200, labeler.getLuminance(square));
+		assertEquals(33 + 5*W, labeler.getLastPixel(square));
+
+		// 4x4 square spans columns 30..33, thirds split at 30 and 31, bottom row left out
+		int[] thirds = labeler.getThirds(square, new int[3]);
+		assertEquals(3, thirds[0]);
+		assertEquals(6, thirds[1]);
+		assertEquals(9, thirds[2]);
+	}
+
+	@Test
+	public void testThirdsWithIsland() {
+		labeler.label(grey, W, H, 100);
+		int[] alone = labeler.getThirds(labeler.labelAt(5 + 5*W), new int[3]);
+
+		// a white island in the hole shares the ring's bounding box, but not its counts
+		fill(12, 12, 13, 13, 200);
+		labeler.label(grey, W, H, 100);
+		int ring = labeler.labelAt(5 + 5*W);
+		assertTrue(labeler.labelAt(12 + 12*W) != ring);
+		assertArrayEquals(alone, labeler.getThirds(ring, new int[3]));
+	}
+
+	@Test
+	public void testUShapeMerges() {
+		// two arms joined only at the bottom, labeled as separate runs until the last row
+		grey = new byte[W*H];
+		fill(2, 2, 4, 12, 200);
+		fill(10, 2, 12, 12, 200);
+		fill(2, 12, 12, 14, 200);
+
+		// the gap between the arms is open at the top, so it joins the background
+		assertEquals(2, labeler.label(grey, W, H, 100));
+		int u = labeler.labelAt(2 + 2*W);
+		assertEquals(u, labeler.labelAt(12 + 2*W));
+		assertEquals(33 + 33 + 33 - 3 - 3, labeler.getArea(u));
+	}
+
+	@Test
+	public void testEdgesDontWrap() {
+		// right edge of one row is next to the left edge of the following one in the pixel array,
+		// but they aren't neighbours in the frame
+		fill(W-3, 22, W-1, 25, 200);
+		fill(0, 23, 2, 27, 200);
+		labeler.label(grey, W, H, 100);
+		int right = labeler.labelAt(W-1 + 22*W);
+		int left = labeler.labelAt(23*W);
+		assertTrue(labeler.isWhite(right));
+		assertTrue(labeler.isWhite(left));
+		assertTrue(right != left);
+		assertEquals(3*4, labeler.getArea(right));
+		assertEquals(3*5, labeler.getArea(left));
+	}
+}
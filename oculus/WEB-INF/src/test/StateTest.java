@@ -0,0 +1,157 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import oculus.Observer;
+import oculus.State;
+import oculus.StateJournal;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class StateTest {
+
+	State state = State.getReference();
+
+	@Before
+	public void setUp() {
+		System.out.println("running: " + getClass().toString());
+		state.delete(State.values.speed);
+		state.delete("testkey");
+	}
+
+	@Test
+	public void testTypedReads() {
+		state.set(State.values.speed, 150);
+		assertEquals(150, state.getInteger(State.values.speed));
+		assertEquals(150L, state.getLong(State.values.speed));
+		assertEquals("150", state.get(State.values.speed));
+		assertFalse(state.getBoolean(State.values.speed));
+
+		state.set(State.values.speed, " fast ");
+		assertEquals("fast", state.get(State.values.speed));
+		assertEquals(State.ERROR, state.getInteger(State.values.speed));
+
+		state.set(State.values.speed, 5000000000L);
+		assertEquals(5000000000L, state.getLong(State.values.speed));
+		assertEquals(State.ERROR, state.getInteger(State.values.speed));
+
+		state.set(State.values.speed, true);
+		assertTrue(state.getBoolean(State.values.speed));
+		assertEquals("true", state.get(State.values.speed));
+	}
+
+	@Test
+	public void testStringKeys() {
+		state.set(" speed ", "200");
+		assertEquals(200, state.getInteger(State.values.speed));
+		assertTrue(state.exists("speed"));
+
+		state.delete("speed");
+		assertNull(state.get(State.values.speed));
+		assertEquals(State.ERROR, state.getInteger("speed"));
+
+		state.set("testkey", "TRUE");
+		assertTrue(state.getBoolean("testkey"));
+		assertEquals("TRUE", state.getProperties().getProperty("testkey"));
+		state.delete("testkey");
+		assertFalse(state.exists("testkey"));
+	}
+
+	@Test
+	public void testObservers() throws InterruptedException {
+		final List<String> keys = new ArrayList<String>();
+		Observer obs = new Observer() {
+			public void updated(String key) { keys.add(key); }
+		};
+		state.addObserver(obs);
+		state.set(State.values.speed, 100);
+		state.set("testkey ", "x");
+		assertTrue(state.getDispatcher().drain(1000));
+		state.delete(State.values.speed);
+		assertTrue(state.getDispatcher().drain(1000));
+		state.removeObserver(obs);
+		assertEquals("[speed, testkey, speed]", keys.toString());
+	}
+
+	@Test
+	public void testKeyedObservers() throws InterruptedException {
+		final List<String> keys = new ArrayList<String>();
+		Observer obs = new Observer() {
+			public void updated(String key) { keys.add(key); }
+		};
+		state.addObserver(obs, State.values.speed, State.values.centerpoint);
+		state.set(State.values.speed, 100);
+		state.set(State.values.dockstatus, "docked");
+		state.set("testkey", "x");
+		state.set(State.values.centerpoint, 500);
+		assertTrue(state.getDispatcher().drain(1000));
+		state.removeObserver(obs);
+		assertEquals("[speed, centerpoint]", keys.toString());
+	}
+
+	@Test
+	public void testSlowObserverCoalesces() throws InterruptedException {
+		final List<String> seen = new ArrayList<String>();
+		final Object gate = new Object();
+		Observer slow = new Observer() {
+			public void updated(String key) {
+				synchronized (gate) { 
+					seen.add(key + "=" + state.get(key)); 
+				}
+			}
+		};
+		state.addObserver(slow);
+		synchronized (gate) {
+			// setters don't wait on the observer
+			for (int i = 0; i < 100; i++) state.set(State.values.speed, i);
+		}
+		assertTrue(state.getDispatcher().drain(1000));
+		state.removeObserver(slow);
+		assertTrue(seen.size() < 100);
+		assertEquals("speed=99", seen.get(seen.size() - 1));
+	}
+
+	@Test
+	public void testAwait() throws Exception {
+		state.set(State.values.batterylife, 40);
+		assertEquals("40", state.await(State.values.batterylife, State.Condition.lessThan(50), 10));
+		assertNull(state.await(State.values.batterylife, State.Condition.greaterThan(90), 10));
+		
+		state.delete(State.values.dockstatus);
+		Future<String> docked = state.when(State.values.dockstatus, State.Condition.startsWith("dock"));
+		new Thread(new Runnable() {
+			public void run() { 
+				state.set(State.values.dockstatus, "undocked");
+				state.set(State.values.dockstatus, "docked"); 
+			}
+		}).start();
+		assertEquals("docked", docked.get(1, TimeUnit.SECONDS));
+		assertFalse(state.block("testkey", "*", 10));
+	}
+
+	@Test
+	public void testJournal() throws IOException {
+		state.set(State.values.dockstatus, "docking");
+		state.set("testkey", "x");
+		state.delete(State.values.dockstatus);
+		StateJournal.Entry[] entries = state.getJournal().snapshot(State.values.dockstatus.name(), 10);
+		assertEquals("docking", entries[entries.length - 2].value);
+		assertNull(entries[entries.length - 1].value);
+		assertTrue(state.getJournal().history("testkey", 10).endsWith("testkey x\n"));
+		
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		state.getJournal().dump(bytes);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+		assertEquals(0x4f43534a, in.readInt());
+	}
+}